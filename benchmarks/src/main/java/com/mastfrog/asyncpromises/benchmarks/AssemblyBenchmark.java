@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises.benchmarks;
+
+import com.mastfrog.asyncpromises.AsyncPromise;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of assembling a ten-step chain with <code>create().then()</code>, with
+ * and without the compilation which happens on first start, against building
+ * an equivalent pipeline of not-yet-completed CompletableFutures.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssemblyBenchmark {
+
+    private final Steps.Increment increment = new Steps.Increment();
+    private final Steps.Result result = new Steps.Result();
+
+    @Benchmark
+    public AsyncPromise<Integer, Integer> assemble() {
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(increment);
+        for (int i = 1; i < 10; i++) {
+            p = p.then(increment);
+        }
+        return p;
+    }
+
+    @Benchmark
+    public Integer assembleAndStart() {
+        assemble().start(0, result);
+        return result.value;
+    }
+
+    @Benchmark
+    public CompletableFuture<Integer> completableFutureAssemble() {
+        CompletableFuture<Integer> head = new CompletableFuture<>();
+        CompletableFuture<Integer> f = head;
+        for (int i = 0; i < 10; i++) {
+            f = f.thenApply(Steps.INCREMENT);
+        }
+        return f;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises.benchmarks;
+
+import com.mastfrog.asyncpromises.PromiseContext;
+import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PromiseContext puts and gets - populating a fresh context with a few keys
+ * as a chain's steps would, and reading from an already populated one.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+
+    private static final Key<String> NAME = PromiseContext.newKey(String.class);
+    private static final Key<Integer> COUNT = PromiseContext.newKey(Integer.class);
+    private static final Key<Long> TIMESTAMP = PromiseContext.newKey(Long.class);
+    private static final Key<Object> PAYLOAD = PromiseContext.newKey(Object.class);
+    private final Integer count = 42;
+    private final Long timestamp = 1234567890L;
+    private final Object payload = new Object();
+    private PromiseContext populated;
+
+    @Setup
+    public void setup() {
+        populated = populate(new PromiseContext());
+    }
+
+    private PromiseContext populate(PromiseContext ctx) {
+        return ctx.put(NAME, "name").put(COUNT, count).put(TIMESTAMP, timestamp).put(PAYLOAD, payload);
+    }
+
+    @Benchmark
+    public PromiseContext putFourKeys() {
+        return populate(new PromiseContext());
+    }
+
+    @Benchmark
+    public Object getFourKeys() {
+        populated.get(NAME);
+        populated.get(COUNT);
+        populated.get(TIMESTAMP);
+        return populated.get(PAYLOAD);
+    }
+
+    @Benchmark
+    public Object putThenGet() {
+        PromiseContext ctx = populate(new PromiseContext());
+        ctx.get(NAME);
+        ctx.get(COUNT);
+        ctx.get(TIMESTAMP);
+        return ctx.get(PAYLOAD);
+    }
+}
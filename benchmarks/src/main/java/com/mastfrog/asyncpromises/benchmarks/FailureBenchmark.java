@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises.benchmarks;
+
+import com.mastfrog.asyncpromises.AsyncPromise;
+import com.mastfrog.asyncpromises.FailureHandler;
+import com.mastfrog.asyncpromises.PromiseContext;
+import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A failure at the end of a chain assembled from nested promises, each of
+ * which has its own failure handler that asks for propagation, so the failure
+ * is passed back through all of them - against a CompletableFuture pipeline
+ * whose exception passes through the same number of handlers.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FailureBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int depth;
+
+    private AsyncPromise<Integer, Integer> chain;
+    private final Steps.Result result = new Steps.Result();
+    private int notified;
+
+    private final FailureHandler handler = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            notified++;
+            return true;
+        }
+    };
+
+    private final BiConsumer<Integer, Throwable> futureHandler = new BiConsumer<Integer, Throwable>() {
+        @Override
+        public void accept(Integer t, Throwable u) {
+            if (u != null) {
+                notified++;
+            }
+        }
+    };
+
+    @Setup
+    public void setup() {
+        Steps.Increment increment = new Steps.Increment();
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(increment).then(increment);
+        p.onFailure(handler);
+        for (int i = 1; i < depth; i++) {
+            AsyncPromise<Integer, Integer> segment = AsyncPromise.create(increment).then(increment);
+            segment.onFailure(handler);
+            p = p.then(segment);
+        }
+        chain = p.then(new Steps.Fail());
+    }
+
+    @Benchmark
+    public int propagate() {
+        chain.start(0, result);
+        return notified;
+    }
+
+    @Benchmark
+    public int completableFuturePropagate() {
+        CompletableFuture<Integer> f = new CompletableFuture<>();
+        CompletableFuture<Integer> tail = f;
+        for (int i = 0; i < depth; i++) {
+            tail = tail.thenApply(Steps.INCREMENT).thenApply(Steps.INCREMENT).whenComplete(futureHandler);
+        }
+        f.completeExceptionally(Steps.Fail.FAILURE);
+        return notified;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises.benchmarks;
+
+import com.mastfrog.asyncpromises.BlockingLogic;
+import com.mastfrog.asyncpromises.Logic;
+import com.mastfrog.asyncpromises.LongLogic;
+import com.mastfrog.asyncpromises.LongTrigger;
+import com.mastfrog.asyncpromises.PromiseContext;
+import com.mastfrog.asyncpromises.SimpleLogic;
+import com.mastfrog.asyncpromises.Trigger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Logic and trigger implementations shared by the benchmarks.
+ *
+ * @author Tim Boudreau
+ */
+final class Steps {
+
+    private Steps() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Adds one and triggers synchronously.
+     */
+    static final class Increment implements SimpleLogic<Integer, Integer> {
+
+        @Override
+        public void run(Integer data, Trigger<Integer> next) throws Exception {
+            next.trigger(data + 1, null);
+        }
+    }
+
+    /**
+     * Runs tasks on the calling thread, so blocking logic can be measured
+     * without thread hand-offs.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Adds one and returns the result.
+     */
+    static final class BlockingIncrement implements BlockingLogic<Integer, Integer> {
+
+        @Override
+        public Integer run(Integer data) throws Exception {
+            return data + 1;
+        }
+    }
+
+    /**
+     * Adds one to a long and triggers synchronously, without boxing.
+     */
+    static final class LongIncrement implements LongLogic {
+
+        @Override
+        public void run(long data, LongTrigger next, PromiseContext context) throws Exception {
+            next.trigger(data + 1, null);
+        }
+    }
+
+    /**
+     * Adds one and triggers from a task submitted to an executor.
+     */
+    static final class AsyncIncrement implements Logic<Integer, Integer> {
+
+        private final Executor executor;
+
+        AsyncIncrement(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    next.trigger(data + 1, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Always fails.
+     */
+    static final class Fail implements SimpleLogic<Integer, Integer> {
+
+        static final RuntimeException FAILURE = new StacklessException();
+
+        @Override
+        public void run(Integer data, Trigger<Integer> next) throws Exception {
+            next.trigger(null, FAILURE);
+        }
+    }
+
+    /**
+     * A preallocated exception without a stack trace, so failure benchmarks
+     * do not measure filling one in.
+     */
+    static final class StacklessException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StacklessException() {
+            super("Benchmark failure", null, false, false);
+        }
+    }
+
+    static final Function<Integer, Integer> INCREMENT = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer t) {
+            return t + 1;
+        }
+    };
+
+    static Function<Integer, CompletableFuture<Integer>> asyncIncrement(final Executor executor) {
+        return new Function<Integer, CompletableFuture<Integer>>() {
+            @Override
+            public CompletableFuture<Integer> apply(final Integer t) {
+                final CompletableFuture<Integer> result = new CompletableFuture<>();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.complete(t + 1);
+                    }
+                });
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Holds the result of a synchronous run, so a single instance can be
+     * reused across benchmark invocations.
+     */
+    static final class Result implements Trigger<Integer> {
+
+        Integer value;
+
+        @Override
+        public void trigger(Integer obj, Throwable thrown) {
+            value = obj;
+        }
+    }
+
+    /**
+     * Holds the result of a synchronous run of long logic.
+     */
+    static final class LongResult implements LongTrigger {
+
+        long value;
+
+        @Override
+        public void trigger(long obj, Throwable thrown) {
+            value = obj;
+        }
+    }
+
+    /**
+     * Waits for the result of an asynchronous run.
+     */
+    static final class Waiter implements Trigger<Integer> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Integer value;
+
+        @Override
+        public void trigger(Integer obj, Throwable thrown) {
+            value = obj;
+            latch.countDown();
+        }
+
+        Integer await() throws InterruptedException {
+            latch.await();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Logic which runs several promises concurrently against the same input, and
+ * passes on a list of their results, in the order the promises were passed,
+ * once all have completed.  If any branch fails, this step fails with its
+ * exception, and the others are cancelled, since their results would be
+ * discarded.
+ *
+ * @author Tim Boudreau
+ */
+final class AllLogic<T, R> implements Logic<T, List<R>> {
+
+    private final AsyncPromise<?, ?>[] branches;
+
+    AllLogic(List<? extends AsyncPromise<T, R>> branches) {
+        this.branches = branches.toArray(new AsyncPromise<?, ?>[branches.size()]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(T data, Trigger<List<R>> next, PromiseContext context) throws Exception {
+        if (branches.length == 0) {
+            next.trigger(Collections.<R>emptyList(), null);
+            return;
+        }
+        Join<R> join = new Join<>(branches.length, next);
+        for (int i = 0; i < branches.length; i++) {
+            join.started(i, ((AsyncPromise<T, R>) branches[i]).startBranch(data, context.copy(), new Slot<>(i, join)));
+        }
+    }
+
+    /**
+     * Counts down the branches yet to complete;  the count is set to -1 on
+     * the first failure so that no later completion can reach zero.
+     */
+    private static final class Join<R> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Join> REMAINING
+                = AtomicIntegerFieldUpdater.newUpdater(Join.class, "remaining");
+        private final Object[] results;
+        private final Trigger<List<R>> next;
+        private final AtomicReferenceArray<Cancellable> runs;
+        private volatile int remaining;
+
+        Join(int count, Trigger<List<R>> next) {
+            this.remaining = count;
+            this.results = new Object[count];
+            this.next = next;
+            this.runs = new AtomicReferenceArray<>(count);
+        }
+
+        void started(int index, Cancellable run) {
+            runs.set(index, run);
+            // A branch may have failed while later ones were being started
+            if (remaining < 0) {
+                run.cancel();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void succeeded(int index, R result) {
+            // Published to whichever thread brings the count to zero by
+            // the decrement
+            results[index] = result;
+            if (REMAINING.decrementAndGet(this) == 0) {
+                next.trigger((List<R>) Arrays.asList(results), null);
+            }
+        }
+
+        void failed(Throwable thrown) {
+            if (REMAINING.getAndSet(this, -1) > 0) {
+                // Cancelling the failed branch, and any which have
+                // completed, does nothing
+                for (int i = 0; i < runs.length(); i++) {
+                    Cancellable run = runs.get(i);
+                    if (run != null) {
+                        run.cancel();
+                    }
+                }
+                next.trigger(null, thrown);
+            }
+        }
+    }
+
+    private static final class Slot<R> implements Trigger<R> {
+
+        private final int index;
+        private final Join<R> join;
+
+        Slot(int index, Join<R> join) {
+            this.index = index;
+            this.join = join;
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            if (thrown != null) {
+                join.failed(thrown);
+            } else {
+                join.succeeded(index, obj);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Logic which runs several promises concurrently against the same input, and
+ * passes on the result of whichever succeeds first, cancelling the rest,
+ * whose results would be thrown away.  If all of them fail,
+ * this step fails with the first failure, with the rest added to it as
+ * suppressed exceptions.
+ *
+ * @author Tim Boudreau
+ */
+final class AnyLogic<T, R> implements Logic<T, R> {
+
+    private final AsyncPromise<?, ?>[] branches;
+
+    AnyLogic(List<? extends AsyncPromise<T, R>> branches) {
+        if (branches.isEmpty()) {
+            throw new IllegalArgumentException("No promises to choose from");
+        }
+        this.branches = branches.toArray(new AsyncPromise<?, ?>[branches.size()]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        Race<R> race = new Race<>(branches.length, next);
+        for (int i = 0; i < branches.length; i++) {
+            race.started(i, ((AsyncPromise<T, R>) branches[i]).startBranch(data, context.copy(), race));
+        }
+    }
+
+    /**
+     * Counts down the branches which have yet to fail;  the count is set to
+     * -1 by the first success, so that no later failure can reach zero.
+     */
+    private static final class Race<R> implements Trigger<R> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Race> REMAINING
+                = AtomicIntegerFieldUpdater.newUpdater(Race.class, "remaining");
+        private final Trigger<R> next;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final AtomicReferenceArray<Cancellable> runs;
+        private volatile int remaining;
+
+        Race(int count, Trigger<R> next) {
+            this.remaining = count;
+            this.next = next;
+            this.runs = new AtomicReferenceArray<>(count);
+        }
+
+        void started(int index, Cancellable run) {
+            runs.set(index, run);
+            // A branch may have won while later ones were being started
+            if (remaining < 0) {
+                run.cancel();
+            }
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            if (thrown == null) {
+                if (REMAINING.getAndSet(this, -1) > 0) {
+                    // Cancelling the winner, which has completed, does nothing
+                    for (int i = 0; i < runs.length(); i++) {
+                        Cancellable run = runs.get(i);
+                        if (run != null) {
+                            run.cancel();
+                        }
+                    }
+                    next.trigger(obj, null);
+                }
+                return;
+            }
+            if (!failure.compareAndSet(null, thrown)) {
+                Throwable first = failure.get();
+                // Branches may fail with the same instance - a shared or
+                // cached exception - which cannot suppress itself
+                if (first != thrown) {
+                    first.addSuppressed(thrown);
+                }
+            }
+            if (REMAINING.decrementAndGet(this) == 0) {
+                next.trigger(null, failure.get());
+            }
+        }
+    }
+}
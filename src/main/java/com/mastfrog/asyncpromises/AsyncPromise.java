@@ -24,6 +24,16 @@
 package com.mastfrog.asyncpromises;
 
 import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Function;
 
 /**
  * An asynchronous promise.  Unlike traditional promises that can be chained
@@ -31,7 +41,22 @@ import com.mastfrog.asyncpromises.PromiseContext.Key;
  * asynchronously, and that continuing the chain of promises will occur some
  * time in the future.
  * <p>
- * Promises can be chained together.
+ * Promises can be chained together.  A promise may be chained to any number
+ * of others, before or after it, so an assembled promise can be used as a
+ * building block of any number of other chains - a common prefix extended
+ * differently per request, say.  A chain is compiled the first time it is
+ * started and reused after that, and the compiled steps of a part shared
+ * by several chains are reused by all of them, so assembling a chain per
+ * request from shared parts costs little more than the objects
+ * <code>then()</code> returns.
+ * </p>
+ * <p>
+ * Since a promise may be part of other chains, once it has been chained to
+ * another its definition is fixed:  naming it, giving it a timeout, key,
+ * failure handler or executor throws an IllegalStateException, rather
+ * than changing chains which already contain it.  Such changes can still
+ * be made through the chain it was added to, as long as nothing else
+ * contains that chain, or the part of it being changed.
  * </p>
  * <p>Asynchronous promises have a PromiseContext which can be used to pass
  * additional objects along the chain of promises.
@@ -41,6 +66,32 @@ import com.mastfrog.asyncpromises.PromiseContext.Key;
  */
 public abstract class AsyncPromise<T, R> {
 
+    private static final Trigger<Object> NO_OP = new Trigger<Object>() {
+        @Override
+        public void trigger(Object obj, Throwable thrown) {
+            // do nothing - failures have already been passed to
+            // the failure handlers
+        }
+    };
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AsyncPromise> VERSION
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncPromise.class, "version");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AsyncPromise> VISITS
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncPromise.class, "visits");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AsyncPromise> OWNERS
+            = AtomicIntegerFieldUpdater.newUpdater(AsyncPromise.class, "owners");
+    private volatile Chain compiled;
+    Executor defaultExecutor;
+    long deadlineNanos;
+    // Bumped by any change to this promise's definition
+    volatile int version;
+    // How many compilations of other chains have walked this one
+    private volatile int visits;
+    // How many chains contain this one, counting no higher than two
+    private volatile int owners;
+
     public static <T, R> AsyncPromise<T, R> create(Logic<T, R> toRun) {
         return new PromiseImpl<>(toRun);
     }
@@ -48,36 +99,673 @@ public abstract class AsyncPromise<T, R> {
     public static <T, R> AsyncPromise<T, R> create(SimpleLogic<T, R> toRun) {
         return new PromiseImpl<>(toRun);
     }
+
+    /**
+     * Create a promise whose logic takes and produces a long, for chains of
+     * numeric logic which should not box values between steps.
+     *
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static AsyncPromise<Long, Long> createLong(LongLogic toRun) {
+        return PromiseImpl.forLong(toRun);
+    }
+
+    /**
+     * Create a promise whose logic takes and produces an int, for chains of
+     * numeric logic which should not box values between steps.
+     *
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static AsyncPromise<Integer, Integer> createInt(IntLogic toRun) {
+        return PromiseImpl.forInt(toRun);
+    }
+
+    /**
+     * Create a promise whose logic takes and produces a double, for chains of
+     * numeric logic which should not box values between steps.
+     *
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static AsyncPromise<Double, Double> createDouble(DoubleLogic toRun) {
+        return PromiseImpl.forDouble(toRun);
+    }
+
+    /**
+     * Create a promise which runs blocking logic on a virtual thread (or,
+     * on JVMs without them, a thread from a shared cached pool).
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> createBlocking(BlockingLogic<T, R> toRun) {
+        return new PromiseImpl<>(toRun, VirtualThreads.executor());
+    }
     
+    /**
+     * Create a promise which runs all of the passed promises concurrently
+     * against its input, and outputs a list of their results in the order
+     * the promises were passed.  If any fails, the failure is passed to
+     * failure handlers as a failure of this promise (after the failed
+     * promise's own handlers), and the others are cancelled.
+     * <p>
+     * Each promise gets its own copy of the context as it was when this
+     * one was started, since they run concurrently with each other.
+     * </p>
+     *
+     * @param <T> The input type
+     * @param <R> The output type of each promise
+     * @param promises Some promises
+     * @return A promise
+     */
+    @SafeVarargs
+    public static <T, R> AsyncPromise<T, List<R>> all(AsyncPromise<T, R>... promises) {
+        // Copied element by element, so the array never escapes
+        List<AsyncPromise<T, R>> list = new ArrayList<>(promises.length);
+        for (AsyncPromise<T, R> p : promises) {
+            list.add(p);
+        }
+        return all(list);
+    }
+
+    /**
+     * Create a promise which runs all of the passed promises concurrently
+     * against its input, and outputs a list of their results in the order
+     * the promises were passed.
+     *
+     * @param <T> The input type
+     * @param <R> The output type of each promise
+     * @param promises Some promises
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, List<R>> all(List<? extends AsyncPromise<T, R>> promises) {
+        return new PromiseImpl<>(new AllLogic<>(promises));
+    }
+
+    /**
+     * Create a promise which runs all of the passed promises concurrently
+     * against its input, and outputs the result of whichever succeeds first,
+     * cancelling the others.  It fails only if all of them fail.
+     *
+     * @param <T> The input type
+     * @param <R> The output type of each promise
+     * @param promises Some promises
+     * @return A promise
+     */
+    @SafeVarargs
+    public static <T, R> AsyncPromise<T, R> any(AsyncPromise<T, R>... promises) {
+        List<AsyncPromise<T, R>> list = new ArrayList<>(promises.length);
+        for (AsyncPromise<T, R> p : promises) {
+            list.add(p);
+        }
+        return any(list);
+    }
+
+    /**
+     * Create a promise which runs all of the passed promises concurrently
+     * against its input, and outputs the result of whichever succeeds first,
+     * cancelling the others.  It fails only if all of them fail.
+     *
+     * @param <T> The input type
+     * @param <R> The output type of each promise
+     * @param promises Some promises
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> any(List<? extends AsyncPromise<T, R>> promises) {
+        return new PromiseImpl<>(new AnyLogic<>(promises));
+    }
+
+    /**
+     * Create a promise which runs the passed promise against each element of
+     * a collection, with no more than <code>maxConcurrency</code> running at
+     * a time, and outputs a list of the results in the collection's iteration
+     * order.  If any fails, no further elements are started, and the
+     * failure is passed on as for <code>all()</code>.
+     *
+     * @param <T> The element type
+     * @param <R> The output type for each element
+     * @param each The promise to run against each element
+     * @param maxConcurrency The maximum number of elements to process at once
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<Collection<T>, List<R>> parallelMap(AsyncPromise<T, R> each, int maxConcurrency) {
+        return new PromiseImpl<>(new ParallelMapLogic<>(each, maxConcurrency));
+    }
+
+    /**
+     * Create a promise which collects the inputs of concurrent runs into
+     * batches, and passes each batch to the passed logic in a single call.
+     * A batch is passed on as soon as it holds <code>maxBatchSize</code>
+     * inputs, or when <code>maxDelay</code> has passed since its first input
+     * arrived, whichever comes first.  Each run then continues with its own
+     * entry from the list of results, or, if the batch fails, with its own
+     * failure handlers.
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param maxBatchSize The most inputs to pass in one batch
+     * @param maxDelay How long the first input in a batch may wait for
+     * others
+     * @param unit The unit of the delay
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> createBatched(int maxBatchSize, long maxDelay, TimeUnit unit, BatchLogic<T, R> toRun) {
+        return new PromiseImpl<>(new BatchingLogic<>(toRun, maxBatchSize, maxDelay, unit));
+    }
+
+    /**
+     * Create a promise which runs the passed one, and if it fails, runs it
+     * again as the passed policy says, until it succeeds or the policy gives
+     * up - so a transient failure of one step is absorbed there, rather than
+     * failing the whole chain.  The passed promise's own failure handlers
+     * see the failure of each attempt;  the handlers of the returned promise
+     * see one failure, if every attempt fails - the failure itself, if
+     * there was only one attempt, or else an ExecutionException caused by
+     * the last, with the earlier ones attached as suppressed exceptions.
+     * What the attempt which succeeds puts in its context is seen by the
+     * steps after it;  what failed attempts put there is not.
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param promise The promise to try
+     * @param policy The retry policy
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> retrying(AsyncPromise<T, R> promise, RetryPolicy policy) {
+        return new PromiseImpl<>(new RetryLogic<>(promise, policy));
+    }
+
+    /**
+     * Create a promise which caches the results of the passed logic by
+     * input, for idempotent lookups.  Results are kept for the passed time,
+     * and no more than <code>maxSize</code> are kept, the oldest being
+     * evicted first.  A cached result is passed on synchronously, with no
+     * executor hop.  If several runs miss on the same input at once, the
+     * logic is run for only one of them, and its result passed to all.
+     * Failures are not cached.
+     *
+     * @param <T> The input type, which must have a sound equals() and
+     * hashCode()
+     * @param <R> The output type
+     * @param maxSize The most results to keep
+     * @param ttl How long to keep a result
+     * @param unit The unit of the time to live
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> cached(int maxSize, long ttl, TimeUnit unit, Logic<T, R> toRun) {
+        return new PromiseImpl<>(new CachingLogic<>(toRun, maxSize, ttl, unit));
+    }
+
+    /**
+     * Create a promise which runs the passed logic only when the passed
+     * bulkhead has room for it, so that no more runs than its limit are
+     * inside logic guarded by it at once.  What happens to a run which
+     * arrives when it is full depends on the bulkhead.
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param bulkhead The bulkhead, usually shared by everything which calls
+     * the same backend
+     * @param toRun The logic
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> limited(Bulkhead bulkhead, Logic<T, R> toRun) {
+        return new PromiseImpl<>(new BulkheadLogic<>(bulkhead, toRun));
+    }
+
+    /**
+     * Create a promise from a function which returns a CompletionStage, for
+     * calling APIs built on CompletableFuture.  The stage's outcome is passed
+     * on from whichever thread completes it, with no executor hop, and a
+     * failure goes to the failure handlers like any other.  Cancelling the
+     * run cancels the stage if it is a Future.
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param function The function
+     * @return A promise
+     */
+    public static <T, R> AsyncPromise<T, R> fromStage(Function<? super T, ? extends CompletionStage<R>> function) {
+        return new PromiseImpl<>(stageLogic(function));
+    }
+
+    /**
+     * Adapt a function which returns a CompletionStage to logic, as
+     * <code>fromStage()</code> does, for use wherever logic is expected.
+     *
+     * @param <T> The input type
+     * @param <R> The output type
+     * @param function The function
+     * @return Logic which calls the function and passes on the outcome of
+     * the stage it returns
+     */
+    public static <T, R> Logic<T, R> stageLogic(Function<? super T, ? extends CompletionStage<R>> function) {
+        return new StageLogic<>(function);
+    }
+
+    /**
+     * Create a promise for CPU-bound work which can be split up:  the input
+     * is split into chunks, the passed logic is run against each as a task
+     * in the common ForkJoinPool, so idle cores steal chunks from busy ones,
+     * and the results, in the order of the chunks, are merged into the
+     * output.  Nothing blocks waiting for the chunks:  whichever worker
+     * thread completes the last one merges the results and carries the
+     * chain on.  If any chunk fails, those not yet started are skipped and
+     * the step fails with the first failure.  Each chunk's logic is passed
+     * its own copy of the context.
+     *
+     * @param <T> The input type
+     * @param <C> The chunk type
+     * @param <S> The type of the result for each chunk
+     * @param <R> The output type
+     * @param splitter Splits the input into chunks
+     * @param chunk The logic to run against each chunk
+     * @param merger Merges the chunks' results into the output
+     * @return A promise
+     */
+    public static <T, C, S, R> AsyncPromise<T, R> forkJoin(Function<? super T, ? extends List<? extends C>> splitter,
+            Logic<C, S> chunk, Function<? super List<S>, ? extends R> merger) {
+        return forkJoin(ForkJoinPool.commonPool(), splitter, chunk, merger);
+    }
+
+    /**
+     * Create a promise for CPU-bound work which can be split up, as with
+     * <code>forkJoin()</code>, running the chunks in the passed pool.
+     *
+     * @param <T> The input type
+     * @param <C> The chunk type
+     * @param <S> The type of the result for each chunk
+     * @param <R> The output type
+     * @param pool The pool to run chunks in
+     * @param splitter Splits the input into chunks
+     * @param chunk The logic to run against each chunk
+     * @param merger Merges the chunks' results into the output
+     * @return A promise
+     */
+    public static <T, C, S, R> AsyncPromise<T, R> forkJoin(ForkJoinPool pool, Function<? super T, ? extends List<? extends C>> splitter,
+            Logic<C, S> chunk, Function<? super List<S>, ? extends R> merger) {
+        return new PromiseImpl<>(new ForkJoinLogic<>(splitter, chunk, merger, pool));
+    }
+
     abstract Key<T> key();
 
     /**
      * Run the promise, invoking the passed trigger with a result when the work
      * has completed.
+     * <p>
+     * A promise, once assembled, may be started any number of times,
+     * concurrently from multiple threads;  each call gets its own
+     * PromiseContext and its own record of where it is in the chain.
+     * </p>
+     *
      * @param input The input data
      * @param onDone The trigger
      * @return this
      */
-    public abstract AsyncPromise<T, R> start(T input, Trigger<R> onDone);
+    public final AsyncPromise<T, R> start(T input, Trigger<R> onDone) {
+        new Execution(chain(), new PromiseContext(), onDone).start(input);
+        return this;
+    }
 
     /**
-     * Run the promise, using a no-op trigger, for promises that do not
-     * need to pass back a result.
+     * Run the promise, as <code>start()</code> does, returning a handle
+     * which can be used to cancel the run - when the client which asked for
+     * the work has gone away, for example.  Cancelling stops any further
+     * steps from being started, and passes a CancellationException to the
+     * failure handlers.  Logic can check for cancellation, or register a
+     * hook to abort work in progress, through its PromiseContext.
+     *
+     * @param input The input data
+     * @param onDone The trigger
+     * @return A handle to cancel the run
+     */
+    public final Cancellable startCancellable(T input, Trigger<R> onDone) {
+        Execution execution = new Execution(chain(), new PromiseContext(), onDone);
+        execution.start(input);
+        return execution;
+    }
+
+    /**
+     * Run the promise, returning a CompletionStage which completes with its
+     * result, for handing to code built on CompletableFuture.  The stage is
+     * completed from whichever thread finishes the run, with no executor
+     * hop.  If the run fails, the failure handlers are called as usual, and
+     * then the stage completes exceptionally with the failure.  Cancelling
+     * the stage (if it is converted to a CompletableFuture) cancels the run.
+     *
+     * @param input The input data
+     * @return A CompletionStage
+     */
+    public final CompletionStage<R> toCompletionStage(T input) {
+        StageTrigger<R> stage = new StageTrigger<>();
+        Execution execution = new Execution(chain(), new PromiseContext(), stage, true);
+        stage.attach(execution);
+        execution.start(input);
+        return stage;
+    }
+
+    /**
+     * Run the promise with a primitive input, passing its result to a
+     * primitive trigger, so a chain of primitive logic runs without boxing
+     * anything.  The input is boxed only if the first step is not primitive
+     * logic;  the result, if the last step is not, must be a Number.
+     *
      * @param input The input
+     * @param onDone The trigger
      * @return this
      */
-    public final AsyncPromise<T, R> start(final T input) {
-        AsyncPromise.this.start(input, new Trigger<R>() {
-            @Override
-            public void trigger(R obj, Throwable thrown) {
-                if (thrown != null) {
-                    failed(thrown, key(), input);
-                }
+    public final AsyncPromise<T, R> startLong(long input, LongTrigger onDone) {
+        new Execution(chain(), new PromiseContext(), onDone).start(Step.LONG, input);
+        return this;
+    }
+
+    /**
+     * Run the promise with a primitive input, passing its result to a
+     * primitive trigger, so a chain of primitive logic runs without boxing
+     * anything.  The input is boxed only if the first step is not primitive
+     * logic;  the result, if the last step is not, must be a Number.
+     *
+     * @param input The input
+     * @param onDone The trigger
+     * @return this
+     */
+    public final AsyncPromise<T, R> startInt(int input, IntTrigger onDone) {
+        new Execution(chain(), new PromiseContext(), onDone).start(Step.INT, input);
+        return this;
+    }
+
+    /**
+     * Run the promise with a primitive input, passing its result to a
+     * primitive trigger, so a chain of primitive logic runs without boxing
+     * anything.  The input is boxed only if the first step is not primitive
+     * logic;  the result, if the last step is not, must be a Number.
+     *
+     * @param input The input
+     * @param onDone The trigger
+     * @return this
+     */
+    public final AsyncPromise<T, R> startDouble(double input, DoubleTrigger onDone) {
+        new Execution(chain(), new PromiseContext(), onDone).start(Step.DOUBLE,
+                Double.doubleToRawLongBits(input));
+        return this;
+    }
+
+    /**
+     * Run the promise against each of a stream of inputs, with up to
+     * <code>maxInFlight</code> runs in progress at once, so that while one
+     * input is at a later step of the chain, others can be at earlier ones.
+     * The next input is pulled from the iterator only when there is room for
+     * another run, so a source which produces inputs faster than the chain
+     * can handle them is held back rather than buffered.
+     * <p>
+     * Each result is passed to <code>onEach</code>, one at a time, never
+     * concurrently - in the order of the inputs if <code>ordered</code> is
+     * true, otherwise in the order the runs complete.  Each run has its own
+     * PromiseContext.
+     * </p>
+     * <p>
+     * If a run fails, its failure handlers are called as usual, no further
+     * inputs are pulled, and once the runs already in flight have finished,
+     * <code>onDone</code> is passed the exception.  Otherwise, once the
+     * iterator is exhausted and every run has finished, <code>onDone</code>
+     * is passed the number of results delivered.
+     * </p>
+     *
+     * @param inputs The inputs
+     * @param maxInFlight The most runs to have in progress at once
+     * @param ordered Whether results must be delivered in the order of the
+     * inputs which produced them
+     * @param onEach Receives each result
+     * @param onDone Called once, when the stream is finished
+     * @return this
+     */
+    public final AsyncPromise<T, R> startAll(Iterator<? extends T> inputs, int maxInFlight, boolean ordered, Trigger<? super R> onEach, Trigger<Long> onDone) {
+        new StreamRun<>(this, inputs, maxInFlight, ordered, onEach, onDone).drain();
+        return this;
+    }
+
+    /**
+     * Run the promise, handing the first step off to the passed executor
+     * rather than running it on the calling thread (unless the calling thread
+     * is already running work for that executor in this library).
+     *
+     * @param executor The executor to start on
+     * @param input The input data
+     * @param onDone The trigger
+     * @return this
+     */
+    public final AsyncPromise<T, R> startAsync(Executor executor, T input, Trigger<R> onDone) {
+        new Execution(chain(), new PromiseContext(), onDone).start(input, executor);
+        return this;
+    }
+
+    /**
+     * Set the executor on which steps of this promise run if they were not
+     * given one of their own with <code>thenAsync()</code>.  Promises
+     * subsequently created by calling <code>then()</code> on this one
+     * inherit it.
+     * <p>
+     * Steps are handed off to their executor only when they are not already
+     * running on it - if the previous step triggered synchronously on a
+     * thread the executor is running, the next one simply runs there too.
+     * Without a default executor, steps with none of their own run on
+     * whatever thread triggered the step before them.
+     * </p>
+     *
+     * @param executor An executor, or null to run steps on the triggering
+     * thread
+     * @return this
+     */
+    public final AsyncPromise<T, R> usingExecutor(Executor executor) {
+        if (owners > 0) {
+            // Chains containing this one are compiled using it
+            throw new IllegalStateException("This promise is already part of another chain");
+        }
+        this.defaultExecutor = executor;
+        modified();
+        return this;
+    }
+
+    /**
+     * Run steps of this promise which have no executor of their own on
+     * virtual threads (or, on JVMs without them, threads from a shared
+     * cached pool) - the same as calling <code>usingExecutor()</code>
+     * with that executor.  Appropriate for chains whose logic mostly blocks.
+     *
+     * @return this
+     */
+    public final AsyncPromise<T, R> onVirtualThreads() {
+        return usingExecutor(VirtualThreads.executor());
+    }
+
+    /**
+     * Name the last step of this promise.  When metrics are enabled, the
+     * latency, throughput, in-flight and failure counts of named steps are
+     * recorded, and can be read or exported through PromiseMetrics;  steps
+     * with the same name share metrics.
+     *
+     * @param name A name
+     * @return this
+     */
+    public final AsyncPromise<T, R> named(String name) {
+        PromiseImpl<?, ?> last = editable(false);
+        last.name = name;
+        changed(false);
+        return this;
+    }
+
+    /**
+     * Find the promise which runs first or last in this one, in order to
+     * change it, making sure no other chain contains this one, it, or
+     * anything in between, and so would see the change.
+     *
+     * @param head If true, the first promise, else the last
+     * @return A promise
+     * @throws IllegalStateException if another chain would see the change
+     */
+    final PromiseImpl<?, ?> editable(boolean head) {
+        AsyncPromise<?, ?> result = this;
+        // Whatever is in between is contained by the one before it
+        int allowed = 0;
+        for (;;) {
+            if (result.owners > allowed) {
+                throw new IllegalStateException("This promise is already part of another chain");
             }
-        });
+            if (!(result instanceof WrapperPromise<?, ?, ?>)) {
+                return (PromiseImpl<?, ?>) result;
+            }
+            WrapperPromise<?, ?, ?> w = (WrapperPromise<?, ?, ?>) result;
+            result = head ? w.first() : w.second();
+            allowed = 1;
+        }
+    }
+
+    /**
+     * Record a change made to the promise <code>editable()</code> found,
+     * bumping the version of it and of everything on the way to it.  Since
+     * nothing on the way belongs to any other chain, every chain the change
+     * could affect was compiled from one of those, so a chain need only
+     * check the version of the promise it was compiled from to know whether
+     * anything in it has changed.
+     *
+     * @param head If true, the first promise, else the last
+     */
+    final void changed(boolean head) {
+        AsyncPromise<?, ?> p = this;
+        for (;;) {
+            p.modified();
+            if (!(p instanceof WrapperPromise<?, ?, ?>)) {
+                return;
+            }
+            WrapperPromise<?, ?, ?> w = (WrapperPromise<?, ?, ?>) p;
+            p = head ? w.first() : w.second();
+        }
+    }
+
+    /**
+     * Record that this promise has been made part of another chain.  Only
+     * whether that has happened none, one or several times matters, so
+     * this stops counting at two - which also spares a prefix shared by
+     * chains assembled per request from a write for every one of them.
+     */
+    final void owned() {
+        for (;;) {
+            int o = owners;
+            if (o > 1 || OWNERS.compareAndSet(this, o, o + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give each run of this promise a deadline:  if it has not completed
+     * within the passed time of being started, whichever step it is waiting
+     * on fails with a TimeoutException, which is passed to the failure
+     * handlers like any other failure.  The deadline is stored in the run's
+     * PromiseContext, where steps can read it - to pass on to a remote call,
+     * say - or tighten it.  If the context the run is started with already
+     * has an earlier deadline, that one is kept.
+     *
+     * @param timeout The time allowed for each run
+     * @param unit The unit of the timeout
+     * @return this
+     */
+    public final AsyncPromise<T, R> withDeadline(long timeout, TimeUnit unit) {
+        this.deadlineNanos = unit.toNanos(timeout);
+        modified();
+        return this;
+    }
+
+    /**
+     * Set a timeout for the last step of this promise:  if its logic has not
+     * called its trigger within the passed time of being started, the step
+     * fails with a TimeoutException, which is passed to the failure handlers
+     * like any other failure, and anything the logic passes to its trigger
+     * later is ignored.  Timeouts are kept by a single shared timer, so they
+     * cost the same however many runs are waiting.
+     *
+     * @param timeout The time allowed
+     * @param unit The unit of the timeout
+     * @return this
+     */
+    public final AsyncPromise<T, R> timeout(long timeout, TimeUnit unit) {
+        PromiseImpl<?, ?> last = editable(false);
+        last.timeoutNanos = unit.toNanos(timeout);
+        changed(false);
         return this;
     }
 
+    /**
+     * Run this promise as a branch of some other run, passing failures to
+     * the trigger once this promise's own failure handlers have seen them.
+     *
+     * @param input The input
+     * @param context The context for the branch
+     * @param onDone The trigger
+     * @return A handle to cancel the branch
+     */
+    final Cancellable startBranch(T input, PromiseContext context, Trigger<R> onDone) {
+        Execution execution = new Execution(chain(), context, onDone, true);
+        execution.start(input);
+        return execution;
+    }
+
+    /**
+     * Get this promise compiled into a flat chain of steps, compiling it
+     * if it has not been, or if it has been modified since.
+     *
+     * @return A chain
+     */
+    final Chain chain() {
+        Chain result = compiled;
+        if (result == null || result.isStale()) {
+            compiled = result = Chain.compile(this);
+        }
+        return result;
+    }
+
+    final Chain cachedChain() {
+        return compiled;
+    }
+
+    final void cache(Chain chain) {
+        compiled = chain;
+    }
+
+    /**
+     * Record a change to this promise's definition, so any chain compiled
+     * from it is recompiled.
+     */
+    final void modified() {
+        VERSION.incrementAndGet(this);
+    }
+
+    /**
+     * Record that compiling some other chain has walked this one.
+     *
+     * @return How many compilations have now walked it
+     */
+    final int visited() {
+        return VISITS.incrementAndGet(this);
+    }
+
+    /**
+     * Run the promise, using a no-op trigger, for promises that do not
+     * need to pass back a result.
+     * @param input The input
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
+    public final AsyncPromise<T, R> start(T input) {
+        return start(input, (Trigger<R>) NO_OP);
+    }
+
     /**
      * Run the promise, using null as input (useful for instances whose
      * first type parameter is void).
@@ -171,10 +859,200 @@ public abstract class AsyncPromise<T, R> {
         return then(p);
     }
 
-    abstract void setParent(AsyncPromise<?, T> parent);
+    /**
+     * Chain another unit of logic, to be run on the passed executor, against
+     * the output of this one.  Subsequent steps which have no executor of
+     * their own (and no default executor is set) continue on the same
+     * thread, unless the logic triggers from some other thread.
+     *
+     * @param <S> The type of the next promise's output
+     * @param executor The executor to run the logic on
+     * @param next The logic to run against this promise's result
+     * @return A promise which combine this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenAsync(Executor executor, Logic<R, S> next) {
+        return then(new PromiseImpl<>(next, executor));
+    }
+
+    /**
+     * Chain another unit of logic, to be run on the passed executor, against
+     * the output of this one.
+     *
+     * @param <S> The type of the next promise's output
+     * @param executor The executor to run the logic on
+     * @param next The logic to run against this promise's result
+     * @return A promise which combine this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenAsync(Executor executor, SimpleLogic<R, S> next) {
+        return then(new PromiseImpl<>(next, executor));
+    }
+
+    /**
+     * Chain blocking logic, which returns its result rather than calling a
+     * trigger, to be run on a virtual thread (or, on JVMs without them,
+     * a thread from a shared cached pool) against the output of this one.
+     * The result, or any exception thrown, is routed to the next step or
+     * the failure handlers exactly as if the logic had called a trigger.
+     *
+     * @param <S> The type of the next promise's output
+     * @param next The logic to run against this promise's result
+     * @return A promise which combine this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenBlocking(BlockingLogic<R, S> next) {
+        return thenBlocking(VirtualThreads.executor(), next);
+    }
+
+    /**
+     * Chain blocking logic, which returns its result rather than calling a
+     * trigger, to be run on the passed executor against the output of this
+     * one.
+     *
+     * @param <S> The type of the next promise's output
+     * @param executor The executor to run the logic on
+     * @param next The logic to run against this promise's result
+     * @return A promise which combine this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenBlocking(Executor executor, BlockingLogic<R, S> next) {
+        return then(new PromiseImpl<>(next, executor));
+    }
+
+    /**
+     * Chain logic whose results are cached by input, as with
+     * <code>cached()</code>.
+     *
+     * @param <S> The type of the next promise's output
+     * @param maxSize The most results to keep
+     * @param ttl How long to keep a result
+     * @param unit The unit of the time to live
+     * @param next The logic to run against this promise's result
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenCached(int maxSize, long ttl, TimeUnit unit, Logic<R, S> next) {
+        return then(AsyncPromise.cached(maxSize, ttl, unit, next));
+    }
+
+    /**
+     * Chain logic which runs only when the passed bulkhead has room for it,
+     * as with <code>limited()</code>.
+     *
+     * @param <S> The type of the next promise's output
+     * @param bulkhead The bulkhead
+     * @param next The logic to run against this promise's result
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenLimited(Bulkhead bulkhead, Logic<R, S> next) {
+        return then(AsyncPromise.limited(bulkhead, next));
+    }
+
+    /**
+     * Chain a function which returns a CompletionStage, as with
+     * <code>fromStage()</code>.
+     *
+     * @param <S> The type of the next promise's output
+     * @param function The function to call with this promise's result
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenStage(Function<? super R, ? extends CompletionStage<S>> function) {
+        return then(AsyncPromise.fromStage(function));
+    }
+
+    /**
+     * Chain CPU-bound work which is split into chunks run in the common
+     * ForkJoinPool, as with <code>forkJoin()</code>.
+     *
+     * @param <C> The chunk type
+     * @param <S> The type of the result for each chunk
+     * @param <Q> The type of the next promise's output
+     * @param splitter Splits this promise's result into chunks
+     * @param chunk The logic to run against each chunk
+     * @param merger Merges the chunks' results into the output
+     * @return A promise which combines this and the next one
+     */
+    public final <C, S, Q> AsyncPromise<T, Q> thenForkJoin(Function<? super R, ? extends List<? extends C>> splitter,
+            Logic<C, S> chunk, Function<? super List<S>, ? extends Q> merger) {
+        return then(AsyncPromise.forkJoin(splitter, chunk, merger));
+    }
+
+    /**
+     * Chain logic which is retried as the passed policy says if it fails.
+     *
+     * @param <S> The type of the next promise's output
+     * @param policy The retry policy
+     * @param next The logic to run against this promise's result
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenRetrying(RetryPolicy policy, Logic<R, S> next) {
+        return thenRetrying(policy, new PromiseImpl<>(next));
+    }
+
+    /**
+     * Chain a promise which is run again as the passed policy says if it
+     * fails, as with <code>retrying()</code>.
+     *
+     * @param <S> The type of the next promise's output
+     * @param policy The retry policy
+     * @param next The promise to run against this promise's result
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenRetrying(RetryPolicy policy, AsyncPromise<R, S> next) {
+        return then(AsyncPromise.retrying(next, policy));
+    }
+
+    /**
+     * Chain logic which handles the outputs of many concurrent runs of this
+     * promise in batches, as with <code>createBatched()</code>.
+     *
+     * @param <S> The type of the next promise's output
+     * @param maxBatchSize The most inputs to pass in one batch
+     * @param maxDelay How long the first input in a batch may wait for
+     * others
+     * @param unit The unit of the delay
+     * @param next The logic to run against batches of this promise's results
+     * @return A promise which combines this and the next one
+     */
+    public final <S> AsyncPromise<T, S> thenBatched(int maxBatchSize, long maxDelay, TimeUnit unit, BatchLogic<R, S> next) {
+        return then(new BatchingLogic<>(next, maxBatchSize, maxDelay, unit));
+    }
+
+    /**
+     * Chain logic which takes and produces a long against the output of this
+     * one.  This promise's output must be a Number;  if it comes from
+     * another primitive step, it is passed along without boxing.  These
+     * methods have distinct names rather than overloading
+     * <code>then()</code>, so that lambdas passed to <code>then()</code>
+     * remain unambiguous.
+     *
+     * @param next The logic
+     * @return A promise which combines this and the next one
+     */
+    public final AsyncPromise<T, Long> thenLong(LongLogic next) {
+        return then(PromiseImpl.<R>forLong(next));
+    }
+
+    /**
+     * Chain logic which takes and produces an int against the output of this
+     * one.  This promise's output must be a Number;  if it comes from
+     * another primitive step, it is passed along without boxing.
+     *
+     * @param next The logic
+     * @return A promise which combines this and the next one
+     */
+    public final AsyncPromise<T, Integer> thenInt(IntLogic next) {
+        return then(PromiseImpl.<R>forInt(next));
+    }
+
+    /**
+     * Chain logic which takes and produces a double against the output of
+     * this one.  This promise's output must be a Number;  if it comes from
+     * another primitive step, it is passed along without boxing.
+     *
+     * @param next The logic
+     * @return A promise which combines this and the next one
+     */
+    public final AsyncPromise<T, Double> thenDouble(DoubleLogic next) {
+        return then(PromiseImpl.<R>forDouble(next));
+    }
 
-    abstract <R> void failed(Throwable thrown, PromiseContext.Key<R> key, R input);
-    
     /**
      * Attach a failure handler to handle asynchronous failures.
      * The handler will be notified if promise execution is aborted
@@ -192,8 +1070,4 @@ public abstract class AsyncPromise<T, R> {
      * @return this
      */
     public abstract AsyncPromise<T, R> onFailure(FailureHandler failure);
-
-    abstract boolean hasFailureHandler();
-
-    abstract PromiseContext context();
 }
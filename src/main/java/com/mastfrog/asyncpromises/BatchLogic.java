@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.List;
+
+/**
+ * Logic which handles the inputs of many concurrent runs of a chain in a
+ * single call - a bulk lookup in place of one lookup per run.  Inputs are
+ * collected from the runs which reach the step until either the batch is
+ * full or its time window expires, then passed here together;  each entry
+ * of the result list is passed on to the run whose input was at the same
+ * position.
+ *
+ * @author Tim Boudreau
+ * @param <T> The type of each input
+ * @param <R> The type of each output
+ */
+public interface BatchLogic<T, R> {
+
+    /**
+     * Do the work.  The trigger must be passed a list with one result for
+     * each input, in the same order, or an exception, which fails every run
+     * in the batch.
+     *
+     * @param inputs The inputs of the runs in this batch, never empty
+     * @param next The trigger to call with the results
+     * @throws Exception If something goes wrong, in which case the failure
+     * handlers of every run in the batch will be invoked, each with its own
+     * input
+     */
+    public void run(List<T> inputs, Trigger<List<R>> next) throws Exception;
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logic which collects the inputs of concurrent runs into batches for a
+ * BatchLogic, and scatters its results back to each run's trigger.  Since
+ * each run's trigger leads back to its own run, a failure of the batch
+ * reaches each run's own failure handlers with its own input.
+ * <p>
+ * A batch is flushed on the thread of the run which fills it, or, if its
+ * window expires first, on the executor used for blocking logic, so that a
+ * slow bulk call never holds up the timer thread.  Whichever thread calls
+ * the BatchLogic's trigger carries each run in the batch on to its next
+ * step in turn;  a following step with its own executor spreads them out.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class BatchingLogic<T, R> implements Logic<T, R> {
+
+    private final BatchLogic<T, R> logic;
+    private final int maxSize;
+    private final long maxDelayNanos;
+    private Batch<T, R> current; // guarded by this
+
+    BatchingLogic(BatchLogic<T, R> logic, int maxSize, long maxDelay, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + maxSize);
+        }
+        if (maxDelay <= 0) {
+            throw new IllegalArgumentException("Batch window must be positive: " + maxDelay);
+        }
+        this.logic = logic;
+        this.maxSize = maxSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    @Override
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        Batch<T, R> batch;
+        boolean opened = false;
+        boolean full = false;
+        synchronized (this) {
+            batch = current;
+            if (batch == null) {
+                batch = current = new Batch<>(this, maxSize);
+                opened = true;
+            }
+            batch.add(data, next);
+            if (batch.size() == maxSize) {
+                current = null;
+                full = true;
+            }
+        }
+        if (full) {
+            // Constant time, and harmless if it was never scheduled
+            batch.cancel();
+            batch.flush();
+        } else if (opened) {
+            // If the batch fills before this is scheduled, it is already
+            // cancelled and never fires
+            Scheduler.schedule(batch, maxDelayNanos);
+        }
+    }
+
+    void expire(Batch<T, R> batch) {
+        synchronized (this) {
+            if (current != batch) {
+                return;
+            }
+            current = null;
+        }
+        VirtualThreads.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                batch.flush();
+            }
+        });
+    }
+
+    private static final class Batch<T, R> extends HashedWheelTimer.Timeout implements Trigger<List<R>> {
+
+        private final BatchingLogic<T, R> owner;
+        private final List<T> inputs;
+        private final List<Trigger<R>> triggers;
+
+        Batch(BatchingLogic<T, R> owner, int maxSize) {
+            this.owner = owner;
+            this.inputs = new ArrayList<>(Math.min(maxSize, 64));
+            this.triggers = new ArrayList<>(Math.min(maxSize, 64));
+        }
+
+        void add(T input, Trigger<R> trigger) {
+            inputs.add(input);
+            triggers.add(trigger);
+        }
+
+        int size() {
+            return inputs.size();
+        }
+
+        @Override
+        protected void expire() {
+            owner.expire(this);
+        }
+
+        void flush() {
+            try {
+                owner.logic.run(inputs, this);
+            } catch (Exception ex) {
+                trigger(null, ex);
+            }
+        }
+
+        @Override
+        public void trigger(List<R> results, Throwable thrown) {
+            if (thrown == null && (results == null || results.size() != triggers.size())) {
+                thrown = new IllegalStateException("Batch of " + triggers.size()
+                        + " inputs produced " + (results == null ? "no"
+                        : Integer.toString(results.size())) + " results");
+            }
+            RuntimeException rethrow = null;
+            for (int i = 0; i < triggers.size(); i++) {
+                // Don't let one run whose later steps throw strand the rest
+                try {
+                    if (thrown != null) {
+                        triggers.get(i).trigger(null, thrown);
+                    } else {
+                        triggers.get(i).trigger(results.get(i), null);
+                    }
+                } catch (RuntimeException ex) {
+                    if (rethrow == null) {
+                        rethrow = ex;
+                    } else {
+                        rethrow.addSuppressed(ex);
+                    }
+                }
+            }
+            if (rethrow != null) {
+                throw rethrow;
+            }
+        }
+    }
+}
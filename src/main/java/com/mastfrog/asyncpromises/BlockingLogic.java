@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * Logic for work which blocks - a JDBC call, file I/O or similar - and simply
+ * returns its result or throws.  Promises run it on an executor (by default,
+ * one which starts a virtual thread per task where the JVM supports that),
+ * and pass the result or exception to the trigger automatically, so it needs
+ * no trigger of its own.
+ *
+ * @author Tim Boudreau
+ * @param <T> The input type
+ * @param <R> The output type
+ */
+public interface BlockingLogic<T, R> {
+
+    /**
+     * Do the work.
+     *
+     * @param data The input data
+     * @return The output, which is passed to the next step
+     * @throws Exception If something goes wrong, in which case the owning
+     * promise's FailureHandler will be invoked.
+     */
+    public R run(T data) throws Exception;
+
+}
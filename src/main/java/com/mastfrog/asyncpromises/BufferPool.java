@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers, so steps which move bytes between channels
+ * can reuse off-heap memory rather than allocating it per run.  Buffers are
+ * pooled by size, in powers of two from 512 bytes to 1Mb;  larger requests
+ * get an unpooled buffer.  Every PromiseContext has one - the shared pool
+ * unless another is set - and <code>PromiseContext.buffer()</code> takes a
+ * buffer from it which goes back when the run finishes.
+ * <p>
+ * Free buffers are kept in stripes, one per processor or so, chosen by
+ * thread, so threads mostly contend only with the few others which share
+ * their stripe.  Nothing is kept per thread:  with blocking logic on a new
+ * virtual thread per task, a per-thread cache would be allocated for
+ * almost every acquire, and strand its buffers when the thread ended.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 20;
+    private static final int SIZES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final BufferPool SHARED = new BufferPool(64);
+    private final Stripe[] stripes;
+    private final int mask;
+    private final boolean pooling;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPerSize Roughly the most free buffers to keep of each size
+     */
+    public BufferPool(int maxPerSize) {
+        if (maxPerSize < 0) {
+            throw new IllegalArgumentException("Negative size " + maxPerSize);
+        }
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors()) {
+            count <<= 1;
+        }
+        count = Math.max(1, Math.min(count, Integer.highestOneBit(Math.max(1, maxPerSize))));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe((maxPerSize + count - 1) / count);
+        }
+        mask = count - 1;
+        pooling = maxPerSize > 0;
+    }
+
+    /**
+     * Get the pool contexts use unless told otherwise.
+     *
+     * @return The shared pool
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get a cleared direct buffer whose limit is the passed number of bytes.
+     * Its capacity may be larger.
+     *
+     * @param bytes The number of bytes needed
+     * @return A buffer
+     */
+    public ByteBuffer acquire(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative size " + bytes);
+        }
+        int ix = sizeIndex(bytes);
+        if (ix < 0) {
+            return ByteBuffer.allocateDirect(bytes);
+        }
+        ByteBuffer result = poll(ix);
+        if (result == null) {
+            result = ByteBuffer.allocateDirect(1 << (ix + MIN_SHIFT));
+        } else {
+            // Called through Buffer, since ByteBuffer's covariant overrides
+            // of these do not exist on Java 8
+            ((Buffer) result).clear();
+        }
+        ((Buffer) result).limit(bytes);
+        return result;
+    }
+
+    private ByteBuffer poll(int ix) {
+        int start = stripe();
+        for (int i = 0; i <= mask; i++) {
+            ByteBuffer result = stripes[(start + i) & mask].poll(ix);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a buffer obtained from <code>acquire()</code> to the pool.  The
+     * caller must not touch it afterwards, and must not release a buffer
+     * obtained from <code>PromiseContext.buffer()</code>, which is released
+     * for it.  Buffers of sizes the pool does not keep are left to the
+     * garbage collector.
+     *
+     * @param buffer A buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (!pooling || !buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int ix = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (ix < 0 || ix >= SIZES) {
+            return;
+        }
+        stripes[stripe()].offer(ix, buffer);
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    private static int sizeIndex(int bytes) {
+        if (bytes > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = bytes <= 1 << MIN_SHIFT ? MIN_SHIFT
+                : 32 - Integer.numberOfLeadingZeros(bytes - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private static final class Stripe {
+
+        private final int max;
+        private final FreeList[] free;
+
+        Stripe(int max) {
+            this.max = max;
+            free = new FreeList[SIZES];
+            for (int i = 0; i < SIZES; i++) {
+                free[i] = new FreeList();
+            }
+        }
+
+        ByteBuffer poll(int ix) {
+            FreeList list = free[ix];
+            ByteBuffer result = list.buffers.poll();
+            if (result != null) {
+                list.count.decrementAndGet();
+            }
+            return result;
+        }
+
+        void offer(int ix, ByteBuffer buffer) {
+            FreeList list = free[ix];
+            if (list.count.incrementAndGet() > max) {
+                list.count.decrementAndGet();
+                return;
+            }
+            list.buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * The free buffers of one size in one stripe, and how many there are.
+     */
+    private static final class FreeList {
+
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+}
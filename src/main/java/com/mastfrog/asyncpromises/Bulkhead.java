@@ -0,0 +1,354 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many runs may be inside the steps it guards at once - across
+ * every chain which uses it, so one instance per backend protects that
+ * backend however many chains call it.  Guard a step with
+ * <code>AsyncPromise.limited()</code> or <code>thenLimited()</code>.
+ * <p>
+ * When the limit is reached, a failing-fast bulkhead fails the step at once
+ * with a RejectedExecutionException;  a queueing one holds the run in a
+ * bounded queue until a slot frees up, failing it with a TimeoutException if
+ * it waits too long, or with a RejectedExecutionException if the queue is
+ * full.  A run which times out or is cancelled while queued leaves the
+ * queue then, so a backend which never frees a slot cannot make it grow.
+ * Nothing blocks a thread:  a queued run is started by whichever run frees
+ * a slot for it.
+ * </p>
+ * <p>
+ * An adaptive bulkhead adjusts its limit between a minimum and maximum by
+ * additive increase and multiplicative decrease:  each time as many steps as
+ * the current limit have completed within the latency target, the limit goes
+ * up by one;  when a step fails or exceeds the target, it drops by a
+ * quarter - at most once per target interval, so one burst of slow calls
+ * does not collapse it.  A backend which slows down thus gets fewer calls
+ * at once until it recovers.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class Bulkhead {
+
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Waiter<?, ?>> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger draining = new AtomicInteger();
+    private final AtomicInteger successes = new AtomicInteger();
+    private final Ticker ticker;
+    private final AtomicLong lastDecrease;
+
+    private Bulkhead(int limit, int maxQueued, long maxWaitNanos, int minLimit, int maxLimit, long latencyTargetNanos, Ticker ticker) {
+        if (limit < 1 || minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Bad limits " + limit + ", "
+                    + minLimit + ", " + maxLimit);
+        }
+        if (maxQueued < 0 || maxWaitNanos < 0) {
+            throw new IllegalArgumentException("Bad queue " + maxQueued + ", " + maxWaitNanos);
+        }
+        this.limit = new AtomicInteger(limit);
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = maxWaitNanos;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.ticker = ticker;
+        this.lastDecrease = new AtomicLong(ticker.nanoTime());
+    }
+
+    /**
+     * Create a bulkhead which fails any run arriving when the limit is
+     * reached.
+     *
+     * @param maxConcurrent The most runs allowed in at once
+     * @return A bulkhead
+     */
+    public static Bulkhead failFast(int maxConcurrent) {
+        return new Bulkhead(maxConcurrent, 0, 0, maxConcurrent, maxConcurrent, 0, Ticker.SYSTEM);
+    }
+
+    /**
+     * Create a bulkhead which queues runs arriving when the limit is reached.
+     *
+     * @param maxConcurrent The most runs allowed in at once
+     * @param maxQueued The most runs which may wait
+     * @param maxWait How long a run may wait, or 0 for as long as it takes
+     * @param unit The unit of the wait
+     * @return A bulkhead
+     */
+    public static Bulkhead queueing(int maxConcurrent, int maxQueued, long maxWait, TimeUnit unit) {
+        return new Bulkhead(maxConcurrent, maxQueued, unit.toNanos(maxWait),
+                maxConcurrent, maxConcurrent, 0, Ticker.SYSTEM);
+    }
+
+    /**
+     * Create a bulkhead like this one, whose limit starts at this one's and
+     * adapts to the latency of the steps it guards.
+     *
+     * @param min The lowest the limit may go
+     * @param max The highest the limit may go
+     * @param latencyTarget The latency above which the guarded backend is
+     * considered overloaded
+     * @param unit The unit of the latency target
+     * @return A new bulkhead
+     */
+    public Bulkhead adaptive(int min, int max, long latencyTarget, TimeUnit unit) {
+        if (latencyTarget <= 0) {
+            throw new IllegalArgumentException("Latency target must be positive: " + latencyTarget);
+        }
+        return new Bulkhead(Math.max(min, Math.min(max, limit.get())), maxQueued,
+                maxWaitNanos, min, max, unit.toNanos(latencyTarget), ticker);
+    }
+
+    /**
+     * Create a bulkhead like this one, which measures latencies using the
+     * passed ticker.
+     *
+     * @param ticker A ticker
+     * @return A new bulkhead
+     */
+    Bulkhead withTicker(Ticker ticker) {
+        return new Bulkhead(limit.get(), maxQueued, maxWaitNanos, minLimit,
+                maxLimit, latencyTargetNanos, ticker);
+    }
+
+    public int limit() {
+        return limit.get();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * The number of waiters actually in the queue, which may briefly
+     * include some which have timed out or been cancelled.
+     */
+    int waiting() {
+        return waiters.size();
+    }
+
+    <T, R> void submit(Logic<T, R> logic, T data, Trigger<R> next, PromiseContext context) {
+        if (tryAcquire()) {
+            run(logic, data, next, context);
+            return;
+        }
+        if (maxQueued == 0 || queued.incrementAndGet() > maxQueued) {
+            if (maxQueued != 0) {
+                queued.decrementAndGet();
+            }
+            next.trigger(null, new RejectedExecutionException("Bulkhead full: "
+                    + inFlight.get() + " in flight, " + queued.get() + " queued"));
+            return;
+        }
+        final Waiter<T, R> waiter = new Waiter<>(this, logic, data, next, context);
+        waiters.offer(waiter);
+        if (maxWaitNanos > 0) {
+            Scheduler.schedule(waiter, maxWaitNanos);
+        }
+        context.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                if (waiter.cancel()) {
+                    // The run has already been reported cancelled
+                    waiter.withdraw();
+                }
+            }
+        });
+        // A slot may have been freed between tryAcquire() and the offer,
+        // by a run which found the queue empty
+        drain();
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private <T, R> void run(Logic<T, R> logic, T data, Trigger<R> next, PromiseContext context) {
+        Permit<R> permit = new Permit<>(this, next);
+        try {
+            logic.run(data, permit, context);
+        } catch (Exception ex) {
+            permit.trigger(null, ex);
+        }
+    }
+
+    void release(long startedAt, boolean failed) {
+        inFlight.decrementAndGet();
+        if (latencyTargetNanos > 0) {
+            adapt(ticker.nanoTime() - startedAt, failed);
+        }
+        drain();
+    }
+
+    private void adapt(long latency, boolean failed) {
+        if (failed || latency > latencyTargetNanos) {
+            long now = ticker.nanoTime();
+            long last = lastDecrease.get();
+            if (now - last > latencyTargetNanos && lastDecrease.compareAndSet(last, now)) {
+                int current = limit.get();
+                limit.compareAndSet(current, Math.max(minLimit, current - Math.max(1, current / 4)));
+                successes.set(0);
+            }
+        } else if (successes.incrementAndGet() >= limit.get()) {
+            successes.set(0);
+            int current = limit.get();
+            if (current < maxLimit) {
+                limit.compareAndSet(current, current + 1);
+            }
+        }
+    }
+
+    /**
+     * Start queued runs while there are free slots.  Only one thread at a
+     * time runs the loop;  one which arrives while another is in it makes
+     * it go round again, so a run which completes synchronously and frees
+     * its slot does not start the next one recursively.  A waiter which
+     * timed out or was cancelled normally takes itself out of the queue,
+     * but may be polled here first;  one whose run was cancelled without
+     * its hook being called - a branch of a cancelled run - is dropped
+     * here.
+     */
+    private void drain() {
+        if (draining.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (!waiters.isEmpty() && tryAcquire()) {
+                Waiter<?, ?> waiter = waiters.poll();
+                if (waiter == null || !waiter.cancel()) {
+                    // Gone, or timed out or cancelled while queued
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                queued.decrementAndGet();
+                if (waiter.context.isCancelled()) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                waiter.start();
+            }
+        } while (draining.decrementAndGet() != 0);
+    }
+
+    private static final class Permit<R> implements Trigger<R> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Permit> RELEASED
+                = AtomicIntegerFieldUpdater.newUpdater(Permit.class, "released");
+        private final Bulkhead bulkhead;
+        private final Trigger<R> next;
+        private final long startedAt;
+        private volatile int released;
+
+        Permit(Bulkhead bulkhead, Trigger<R> next) {
+            this.bulkhead = bulkhead;
+            this.next = next;
+            this.startedAt = bulkhead.latencyTargetNanos > 0 ? bulkhead.ticker.nanoTime() : 0;
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            if (RELEASED.compareAndSet(this, 0, 1)) {
+                // Free the slot before moving on, so the rest of the chain
+                // does not count against it
+                bulkhead.release(startedAt, thrown != null);
+            }
+            next.trigger(obj, thrown);
+        }
+    }
+
+    private static final class Waiter<T, R> extends HashedWheelTimer.Timeout implements Runnable {
+
+        private final Bulkhead bulkhead;
+        private final Logic<T, R> logic;
+        private final T data;
+        private final Trigger<R> next;
+        private final PromiseContext context;
+
+        Waiter(Bulkhead bulkhead, Logic<T, R> logic, T data, Trigger<R> next, PromiseContext context) {
+            this.bulkhead = bulkhead;
+            this.logic = logic;
+            this.data = data;
+            this.next = next;
+            this.context = context;
+        }
+
+        void start() {
+            bulkhead.run(logic, data, next, context);
+        }
+
+        /**
+         * Take this waiter out of the queue once its timeout or a
+         * cancellation has claimed it;  it counts against the queue's bound
+         * until it is gone.
+         */
+        void withdraw() {
+            bulkhead.waiters.remove(this);
+            bulkhead.queued.decrementAndGet();
+        }
+
+        @Override
+        protected void expire() {
+            // Removing it means a scan of the queue, so not on the timer
+            VirtualThreads.executor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            withdraw();
+            next.trigger(null, new TimeoutException("Waited more than "
+                    + TimeUnit.NANOSECONDS.toMillis(bulkhead.maxWaitNanos)
+                    + "ms for the bulkhead"));
+        }
+    }
+}
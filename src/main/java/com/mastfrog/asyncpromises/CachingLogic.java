@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logic which caches the results of other logic by input, for a fixed time
+ * and up to a fixed number of entries.  A hit calls the trigger
+ * synchronously, on the calling thread, after a single volatile read.  A
+ * miss runs the logic - but only once for any number of runs which miss on
+ * the same input at the same time:  the first marks the entry as loading and
+ * runs the logic, and the rest are queued on the entry and all triggered with
+ * its result.
+ * <p>
+ * A load belongs to the run which started it:  if that run times out or is
+ * cancelled while waiting, the load is abandoned, and a new one started for
+ * the next run in line - so a backend call which never returns holds up
+ * only the runs which were waiting when it was made, each no longer than
+ * its own timeout, rather than every later lookup of its key.
+ * </p>
+ * <p>
+ * An entry stays in the map for its key until it is evicted;  an expired or
+ * failed entry is simply loaded again in place on the next lookup, so the
+ * queue of entries by age never holds anything but live entries.  Failures
+ * are passed to every waiting run, and not cached.  When the cache is full,
+ * the oldest entries are evicted first.  Null inputs are never cached.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class CachingLogic<T, R> implements Logic<T, R> {
+
+    private final Logic<T, R> logic;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Ticker ticker;
+    private final ConcurrentHashMap<T, Entry<T, R>> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry<T, R>> byAge = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    CachingLogic(Logic<T, R> logic, int maxSize, long ttl, TimeUnit unit) {
+        this(logic, maxSize, ttl, unit, Ticker.SYSTEM);
+    }
+
+    CachingLogic(Logic<T, R> logic, int maxSize, long ttl, TimeUnit unit, Ticker ticker) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1: " + maxSize);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        }
+        this.logic = logic;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.ticker = ticker;
+    }
+
+    @Override
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        if (data == null) {
+            logic.run(data, next, context);
+            return;
+        }
+        Entry<T, R> entry = entries.get(data);
+        if (entry == null) {
+            Entry<T, R> created = new Entry<>(this, data);
+            entry = entries.putIfAbsent(data, created);
+            if (entry == null) {
+                entry = created;
+                size.incrementAndGet();
+                byAge.offer(created);
+                evict();
+            }
+        }
+        entry.join(next, context);
+    }
+
+    private void evict() {
+        while (size.get() > maxSize) {
+            Entry<T, R> oldest = byAge.poll();
+            if (oldest == null) {
+                break;
+            }
+            if (entries.remove(oldest.key, oldest)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class Loaded<R> {
+
+        private final R value;
+        private final long expiresAt;
+
+        Loaded(R value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(Ticker ticker) {
+            return ticker.nanoTime() - expiresAt < 0;
+        }
+    }
+
+    private static final class Entry<T, R> {
+
+        private final CachingLogic<T, R> owner;
+        private final T key;
+        private volatile Loaded<R> loaded;
+        // Guarded by this;  non-null while loading, and the first waiter is
+        // the one whose run the load belongs to
+        private Load<T, R> loading;
+        private List<Waiter<T, R>> waiters;
+
+        Entry(CachingLogic<T, R> owner, T key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        void join(Trigger<R> trigger, PromiseContext context) {
+            Loaded<R> l = loaded;
+            if (l == null || !l.isFresh(owner.ticker)) {
+                Waiter<T, R> waiter = new Waiter<>(this, trigger, context);
+                Load<T, R> load = null;
+                synchronized (this) {
+                    l = loaded;
+                    if (loading != null || l == null || !l.isFresh(owner.ticker)) {
+                        l = null;
+                        if (loading == null) {
+                            waiters = new ArrayList<>(2);
+                            load = loading = new Load<>(this, waiter);
+                        }
+                        waiters.add(waiter);
+                    }
+                }
+                if (l == null) {
+                    context.onCancel(waiter);
+                    if (load != null) {
+                        start(load);
+                    }
+                    return;
+                }
+            }
+            trigger.trigger(l.value, null);
+        }
+
+        private void start(Load<T, R> load) {
+            synchronized (this) {
+                if (loading != load) {
+                    // Its run was abandoned before it got going
+                    return;
+                }
+            }
+            try {
+                owner.logic.run(key, load, load.waiter.context);
+            } catch (Exception ex) {
+                load.trigger(null, ex);
+            }
+        }
+
+        /**
+         * Drop a waiter whose run timed out or was cancelled.  If the load
+         * was running on its behalf, that load is abandoned - its backend
+         * may never answer - and a new one is started for whichever run is
+         * next in line;  if there is none, the next miss starts one.
+         */
+        void abandon(Waiter<T, R> waiter) {
+            Load<T, R> restart = null;
+            synchronized (this) {
+                if (waiters == null || !waiters.remove(waiter)) {
+                    return;
+                }
+                if (loading.waiter == waiter) {
+                    if (waiters.isEmpty()) {
+                        loading = null;
+                        waiters = null;
+                    } else {
+                        restart = loading = new Load<>(this, waiters.get(0));
+                    }
+                }
+            }
+            if (restart != null) {
+                start(restart);
+            }
+        }
+
+        void loaded(Load<T, R> load, R obj, Throwable thrown) {
+            List<Waiter<T, R>> toNotify;
+            synchronized (this) {
+                if (loading != load) {
+                    // Logic called its trigger twice, or after being
+                    // abandoned
+                    return;
+                }
+                toNotify = waiters;
+                loading = null;
+                waiters = null;
+                if (thrown == null) {
+                    loaded = new Loaded<>(obj, owner.ticker.nanoTime() + owner.ttlNanos);
+                }
+            }
+            for (Waiter<T, R> w : toNotify) {
+                w.trigger.trigger(obj, thrown);
+            }
+        }
+    }
+
+    /**
+     * One attempt to load an entry, on behalf of one waiting run.
+     */
+    private static final class Load<T, R> implements Trigger<R> {
+
+        private final Entry<T, R> entry;
+        private final Waiter<T, R> waiter;
+
+        Load(Entry<T, R> entry, Waiter<T, R> waiter) {
+            this.entry = entry;
+            this.waiter = waiter;
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            entry.loaded(this, obj, thrown);
+        }
+    }
+
+    /**
+     * A run waiting for an entry to load, which is also the hook called
+     * if that run gives up.
+     */
+    private static final class Waiter<T, R> implements Runnable {
+
+        private final Entry<T, R> entry;
+        private final Trigger<R> trigger;
+        private final PromiseContext context;
+
+        Waiter(Entry<T, R> entry, Trigger<R> trigger, PromiseContext context) {
+            this.entry = entry;
+            this.trigger = trigger;
+            this.context = context;
+        }
+
+        @Override
+        public void run() {
+            entry.abandon(this);
+        }
+    }
+}
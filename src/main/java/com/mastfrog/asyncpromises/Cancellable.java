@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * Handle to a run of a promise, which can be used to cancel it.
+ *
+ * @author Tim Boudreau
+ */
+public interface Cancellable {
+
+    /**
+     * Cancel the run.  No further steps are started;  if a step is in
+     * flight, any hook it registered with
+     * <code>PromiseContext.onCancel()</code> is called, and whatever it
+     * later passes to its trigger is ignored.  The failure handlers are
+     * passed a CancellationException as the failure of whichever step the
+     * run had reached.
+     *
+     * @return true if this call cancelled the run, false if it had already
+     * completed, failed or been cancelled
+     */
+    public boolean cancel();
+
+    /**
+     * Determine if the run has been cancelled.
+     *
+     * @return true if it has
+     */
+    public boolean isCancelled();
+}
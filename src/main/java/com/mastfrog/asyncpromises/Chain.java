@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+/**
+ * A promise chain compiled from a tree of WrapperPromises into a flat array of
+ * steps, so running it is an indexed loop rather than a walk of the tree.
+ * <p>
+ * For each step, the index of the nearest step at or before it which has a
+ * failure handler is precomputed, so finding the handlers to notify costs
+ * nothing beyond the handlers themselves.
+ * </p>
+ * <p>
+ * Each step is also resolved to the executor it should run on - its own, if
+ * it was added with one, or else the default executor of the nearest
+ * enclosing promise which has one.
+ * </p>
+ * <p>
+ * A chain also records the overall deadline of the promise it was compiled
+ * from, if any, which each run applies to its context when it starts.
+ * </p>
+ * <p>
+ * Compiled chains are cached by the promise they were compiled from.  Since
+ * failure handlers, keys and the like can still be attached after a
+ * promise has been assembled, each promise carries a version which any
+ * such change bumps - on the promise changed and on every promise on the
+ * way to it from the one it was changed through.  Those are the only
+ * promises containing it, since a promise which is part of another chain
+ * cannot be changed, so a chain need only compare the version of the
+ * promise it was compiled from to know whether it is stale:  one read,
+ * however many promises it was compiled from, and changes to promises
+ * which are not part of it never cause it to be recompiled.
+ * </p>
+ * <p>
+ * Since assembled promises may be reused as parts of any number of other
+ * chains, compiled chains share structure too:  when compiling a chain
+ * meets a part which has a fresh compiled chain of its own, it copies that
+ * chain's steps rather than walking the part again.  A part which is not
+ * started by itself gets a compiled chain of its own the second time a
+ * compilation meets it - so a prefix shared by chains assembled per
+ * request is compiled once, and each request's chain costs a copy of its
+ * steps, while parts used only once are never compiled separately.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class Chain {
+
+    final Step[] steps;
+    private final int[] handlerAt;
+    private final AsyncPromise<?, ?> source;
+    private final int version;
+    final long deadlineNanos;
+
+    private Chain(Step[] steps, int[] handlerAt, AsyncPromise<?, ?> source, int version, long deadlineNanos) {
+        this.steps = steps;
+        this.handlerAt = handlerAt;
+        this.source = source;
+        this.version = version;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    boolean isStale() {
+        return source.version != version;
+    }
+
+    static Chain compile(AsyncPromise<?, ?> promise) {
+        return compile(promise, true);
+    }
+
+    /**
+     * Compile a chain.
+     *
+     * @param promise The promise
+     * @param share If true, parts of it which have been met by an earlier
+     * compilation get compiled chains of their own;  false when compiling
+     * one of those, so that does not recurse
+     * @return A chain
+     */
+    private static Chain compile(AsyncPromise<?, ?> promise, boolean share) {
+        // Read before walking, so a change made during the walk leaves the
+        // chain stale even if the walk already saw it
+        int version = promise.version;
+        Builder builder = new Builder();
+        // Chains built with then() in a loop are deeply left-leaning, so
+        // walk them with an explicit stack rather than recursively
+        Deque<Pending> stack = new ArrayDeque<>();
+        stack.push(new Pending(promise, null));
+        while (!stack.isEmpty()) {
+            Pending pending = stack.pop();
+            AsyncPromise<?, ?> p = pending.promise;
+            // A part's own chain is compiled as if it had no enclosing
+            // promise, so it can stand in only if it inherits no executor
+            if (p != promise && (p.defaultExecutor != null || pending.defaultExecutor == null)) {
+                Chain own = p.cachedChain();
+                if ((own == null || own.isStale()) && share
+                        && p instanceof WrapperPromise<?, ?, ?> && p.visited() > 1) {
+                    own = compile(p, false);
+                    p.cache(own);
+                }
+                if (own != null && !own.isStale()) {
+                    builder.splice(own);
+                    continue;
+                }
+            }
+            Executor executor = p.defaultExecutor != null
+                    ? p.defaultExecutor : pending.defaultExecutor;
+            if (p instanceof WrapperPromise<?, ?, ?>) {
+                WrapperPromise<?, ?, ?> w = (WrapperPromise<?, ?, ?>) p;
+                stack.push(new Pending(w.second(), executor));
+                stack.push(new Pending(w.first(), executor));
+            } else {
+                builder.step(((PromiseImpl<?, ?>) p).toStep(executor));
+            }
+        }
+        return builder.build(promise, version);
+    }
+
+    private static final class Pending {
+
+        private final AsyncPromise<?, ?> promise;
+        private final Executor defaultExecutor;
+
+        Pending(AsyncPromise<?, ?> promise, Executor defaultExecutor) {
+            this.promise = promise;
+            this.defaultExecutor = defaultExecutor;
+        }
+    }
+
+    private static final class Builder {
+
+        private Step[] steps = new Step[8];
+        private int stepCount;
+
+        void step(Step step) {
+            if (stepCount == steps.length) {
+                steps = Arrays.copyOf(steps, stepCount * 2);
+            }
+            steps[stepCount++] = step;
+        }
+
+        void splice(Chain chain) {
+            int newSteps = stepCount + chain.steps.length;
+            if (newSteps > steps.length) {
+                steps = Arrays.copyOf(steps, Math.max(newSteps, stepCount * 2));
+            }
+            System.arraycopy(chain.steps, 0, steps, stepCount, chain.steps.length);
+            stepCount = newSteps;
+        }
+
+        Chain build(AsyncPromise<?, ?> source, int version) {
+            Step[] result = Arrays.copyOf(steps, stepCount);
+            int[] handlerAt = new int[result.length];
+            int lastHandler = -1;
+            for (int i = 0; i < result.length; i++) {
+                if (result[i].onFailure != null) {
+                    lastHandler = i;
+                }
+                handlerAt[i] = lastHandler;
+            }
+            return new Chain(result, handlerAt, source, version, source.deadlineNanos);
+        }
+    }
+
+    int size() {
+        return steps.length;
+    }
+
+    /**
+     * Notify the failure handlers of the step at the passed index and those
+     * before it, nearest first, for as long as they ask for propagation.
+     */
+    void failed(int index, Throwable thrown, Object input, PromiseContext context) {
+        Step failed = steps[index];
+        for (int h = handlerAt[index]; h >= 0; h = h == 0 ? -1 : handlerAt[h - 1]) {
+            if (!steps[h].onFailure.onFailure(failed.key, input, thrown, context)) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * Notified when logic calls its trigger more than once for the same step,
+ * once installed with <code>PromiseDiagnostics.install()</code>.  The
+ * duplicate has already been dropped;  this is for finding the logic which
+ * made it.  It is called on the thread which called the trigger, so
+ * creating an exception here captures the offending call site.
+ *
+ * @author Tim Boudreau
+ */
+public interface DuplicateTriggerListener {
+
+    /**
+     * A trigger was called again for a step which had already completed.
+     *
+     * @param step The index of the step whose trigger was called again -
+     * the run may since have moved on to later steps
+     * @param name The name of that step, if it has one
+     * @param value The value passed to the duplicate call
+     * @param thrown The failure passed to the duplicate call, if any
+     */
+    public void duplicateTrigger(int step, String name, Object value, Throwable thrown);
+}
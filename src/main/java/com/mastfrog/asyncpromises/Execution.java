@@ -0,0 +1,1018 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The record of a single run of a compiled chain - its context, which step it
+ * is on, and the value being passed to that step.  Each step's logic is
+ * passed a small trigger of its own, which leads back here.
+ * <p>
+ * Steps are run from a single loop.  If a step's logic
+ * calls its trigger synchronously, the next step is not started on top of
+ * the current stack;  the trigger records the result and the loop picks up
+ * the next step once the current one returns, so a chain of any length runs
+ * at constant stack depth.  If the trigger is called later, from some other
+ * thread, that thread becomes the one which drives the chain forward.
+ * </p>
+ * <p>
+ * When the next step has an executor, and the current thread is not already
+ * running work for that executor on behalf of this library, the loop is
+ * handed off to it:  the Execution submits itself, and the executor's thread
+ * carries on with the loop where this one left off.
+ * </p>
+ * <p>
+ * Since one of these is created for every run, it keeps per-run allocation
+ * down to itself and the context:  it is its own runnable for executor
+ * hand-offs, and uses field updaters rather than atomics for its counts and
+ * states.  The one per-step cost is the trigger each step's logic is
+ * handed, which must be its own object so a stale one can be told from the
+ * current one;  blocking logic returns its result rather than calling a
+ * trigger, so steps running it allocate nothing.
+ * </p>
+ * <p>
+ * Values passed between steps are held either as an object, or, when a
+ * primitive step triggered them, as the raw bits of an int, long or double
+ * along with what kind of value they are - so chains of primitive logic
+ * never box.  Values are boxed or unboxed only where a primitive step meets
+ * an ordinary one.
+ * </p>
+ * <p>
+ * A step with a timeout is armed with a StepTimeout on the shared timer
+ * before its logic is called, unless the run's deadline would come first.
+ * A run whose context has a deadline gets a single StepTimeout for it, armed
+ * when the first step starts and cancelled when the run ends, which fails
+ * whichever step is in flight when it fires.  Whichever comes first - the
+ * logic calling its trigger, or a timeout firing - claims the step, so
+ * exactly one of them carries the run on;  a trigger which loses is
+ * ignored.
+ * </p>
+ * <p>
+ * Completing a step is a single compare-and-set of the completion state,
+ * which holds the index of the step in flight and is set to calling just
+ * before that step's logic is called.  A trigger only completes the step
+ * whose index it carries:  one called a second time - synchronously,
+ * racing the first from another thread, or long after later steps have
+ * started - loses, and is dropped and reported to PromiseDiagnostics
+ * rather than running the rest of the chain again or standing in for a
+ * later step's result.  The same state tells the trigger whether the logic
+ * has returned yet;  if not, the trigger just records the result for the
+ * loop to pick up when it does, so a synchronous step costs that one
+ * compare-and-set and nothing else.
+ * </p>
+ * <p>
+ * An Execution is also the handle by which a run is cancelled.  Its state
+ * moves once from running to done, or from running to cancelled and then
+ * done once the cancellation has been reported, so a run is reported
+ * complete, failed or cancelled exactly once however those race.  The loop
+ * reads the state once per step, and stops as soon as it sees anything but
+ * running.  A branch also stops if the run it is a branch of is cancelled.
+ * </p>
+ * <p>
+ * When metrics are enabled, a named step is timed from just before its logic
+ * is called until whatever completes it - its trigger, a timeout or a
+ * cancellation - claims it.
+ * </p>
+ * <p>
+ * If a PromiseTracer is installed when the run is created, it gets a trace
+ * id and reports each transition to the tracer.  Since the Execution is what
+ * moves from thread to thread, the trace id goes with the run across
+ * executor hops without anything being copied.
+ * </p>
+ * <p>
+ * Resources registered through the context belong to the root of the tree
+ * of runs - the run whose context branches' contexts were copied from - so
+ * a buffer a branch fills can be passed on to the steps after it.  The root
+ * counts the runs in its tree which are still live, and once the last has
+ * finished, however it finished, releases what was registered.  If any of
+ * them ended with a step abandoned in flight - timed out or cancelled -
+ * whatever logic is still running may yet write into the buffers, so they
+ * are left to the garbage collector instead of going back to the pool.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class Execution implements Runnable, Cancellable {
+
+    private static final ThreadLocal<Executor> RUNNING_ON = new ThreadLocal<>();
+    private static final AtomicIntegerFieldUpdater<Execution> WIP
+            = AtomicIntegerFieldUpdater.newUpdater(Execution.class, "wip");
+    private static final AtomicIntegerFieldUpdater<Execution> STATE
+            = AtomicIntegerFieldUpdater.newUpdater(Execution.class, "state");
+    private static final AtomicReferenceFieldUpdater<Execution, Runnable> HOOK
+            = AtomicReferenceFieldUpdater.newUpdater(Execution.class, Runnable.class, "hook");
+    private static final AtomicIntegerFieldUpdater<Execution> COMPLETION
+            = AtomicIntegerFieldUpdater.newUpdater(Execution.class, "completion");
+    private static final AtomicIntegerFieldUpdater<Execution> LIVE
+            = AtomicIntegerFieldUpdater.newUpdater(Execution.class, "live");
+    private static final AtomicReferenceFieldUpdater<Execution, Resource> RESOURCES
+            = AtomicReferenceFieldUpdater.newUpdater(Execution.class, Resource.class, "resources");
+    private static final Resource RELEASED = new Resource(null, null);
+    private static final int RUNNING = 0;
+    private static final int CANCELLED = 1;
+    private static final int CANCELLED_DONE = 2;
+    private static final int DONE = 3;
+    // The completion state holds the index of the step in flight above
+    // its phase
+    private static final int PHASE_BITS = 3;
+    private static final int PHASE_MASK = (1 << PHASE_BITS) - 1;
+    private static final int IDLE = 0;
+    private static final int CALLING = 1;
+    private static final int COMPLETING = 2;
+    private static final int DETACHED = 3;
+    private static final int COMPLETED = 4;
+    private static final int EXPIRED = 5;
+    private static final int SYNC = 0;
+    private static final int ASYNC = 1;
+    private static final int LATE = 2;
+    private static final int DUPLICATE = 3;
+    private final Chain chain;
+    final PromiseContext context;
+    private final Object onDone;
+    private final int doneKind;
+    private final boolean reportFailures;
+    private final Execution parent;
+    private final Execution root;
+    private final PromiseTracer tracer;
+    private final long traceId;
+    private volatile int wip;
+    private volatile int state;
+    // Which step is in flight, and where it is in being completed
+    private volatile int completion;
+    // The thread calling the step's logic, written before completion
+    // becomes CALLING
+    private Thread caller;
+    private volatile Runnable hook;
+    // Only used on the root
+    private volatile int live = 1;
+    private volatile Resource resources;
+    private boolean abandoned;
+    // Written before the increment of wip which publishes them
+    private int index;
+    private Object value;
+    private long bits;
+    private int kind;
+    private Object input;
+    private long inputBits;
+    private int inputKind;
+    private Executor hopTo;
+    private StepTimeout timeout;
+    // The run's deadline timer, and the deadline it was armed for
+    private StepTimeout deadline;
+    private long armedFor;
+    private int started = -1;
+    private int timing = -1;
+    private long stepStart;
+    private boolean hasHook;
+
+    Execution(Chain chain, PromiseContext context, Trigger<?> onDone) {
+        this(chain, context, onDone, Step.OBJECT, false);
+    }
+
+    Execution(Chain chain, PromiseContext context, LongTrigger onDone) {
+        this(chain, context, onDone, Step.LONG, false);
+    }
+
+    Execution(Chain chain, PromiseContext context, IntTrigger onDone) {
+        this(chain, context, onDone, Step.INT, false);
+    }
+
+    Execution(Chain chain, PromiseContext context, DoubleTrigger onDone) {
+        this(chain, context, onDone, Step.DOUBLE, false);
+    }
+
+    Execution(Chain chain, PromiseContext context, Trigger<?> onDone, boolean reportFailures) {
+        this(chain, context, onDone, Step.OBJECT, reportFailures);
+    }
+
+    /**
+     * Create an execution.
+     *
+     * @param chain The chain to run
+     * @param context The context
+     * @param onDone Receives the result - a Trigger, or a primitive trigger
+     * of the kind passed
+     * @param doneKind The kind of trigger onDone is
+     * @param reportFailures If true, once a failure has been passed to the
+     * failure handlers, it is also passed to <code>onDone</code> - used
+     * when the run is a branch of some larger one, which needs to know
+     */
+    private Execution(Chain chain, PromiseContext context, Object onDone, int doneKind, boolean reportFailures) {
+        this.chain = chain;
+        this.context = context;
+        this.onDone = onDone;
+        this.doneKind = doneKind;
+        this.reportFailures = reportFailures;
+        // If the context belongs to another run, this is a branch of it
+        this.parent = context.execution;
+        context.execution = this;
+        if (parent != null) {
+            root = parent.root;
+            LIVE.incrementAndGet(root);
+        } else {
+            root = this;
+        }
+        this.tracer = PromiseTracing.current();
+        if (tracer != null) {
+            traceId = PromiseTracing.nextTraceId();
+            tracer.runStarted(traceId, parent == null ? 0 : parent.traceId);
+        } else {
+            traceId = 0;
+        }
+        if (chain.deadlineNanos > 0) {
+            context.deadline(chain.deadlineNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void start(Object input) {
+        value = input;
+        drive();
+    }
+
+    void start(int kind, long bits) {
+        this.kind = kind;
+        this.bits = bits;
+        drive();
+    }
+
+    void start(Object input, Executor executor) {
+        if (executor == null || RUNNING_ON.get() == executor) {
+            start(input);
+            return;
+        }
+        value = input;
+        WIP.incrementAndGet(this);
+        if (!handOff(executor)) {
+            WIP.set(this, 0);
+        }
+    }
+
+    /**
+     * Complete step <code>ix</code> with an object.
+     */
+    void complete(int ix, Object obj, Throwable thrown) {
+        int claimed = claim(ix);
+        if (claimed >= LATE) {
+            if (claimed == DUPLICATE) {
+                duplicate(ix, obj, thrown);
+            }
+            return;
+        }
+        if (!completed(ix, thrown)) {
+            value = obj;
+            kind = Step.OBJECT;
+            index++;
+            proceed(ix, claimed);
+        }
+    }
+
+    /**
+     * Complete step <code>ix</code> with the raw bits of a primitive of the
+     * passed kind.
+     */
+    void complete(int ix, int k, long b, Throwable thrown) {
+        int claimed = claim(ix);
+        if (claimed >= LATE) {
+            if (claimed == DUPLICATE) {
+                duplicate(ix, box(k, null, b), thrown);
+            }
+            return;
+        }
+        if (!completed(ix, thrown)) {
+            bits = b;
+            kind = k;
+            index++;
+            proceed(ix, claimed);
+        }
+    }
+
+    /**
+     * Record the end of a step which has been claimed, and fail the run if
+     * it failed.
+     *
+     * @return true if it failed
+     */
+    private boolean completed(int ix, Throwable thrown) {
+        if (tracer != null) {
+            exited(ix, thrown);
+        }
+        if (PromiseMetrics.ENABLED) {
+            measure(thrown != null);
+        }
+        if (thrown == null) {
+            return false;
+        }
+        failed(ix, thrown, box(inputKind, input, inputBits));
+        completion = ix << PHASE_BITS | COMPLETED;
+        return true;
+    }
+
+    /**
+     * Claim the completion of step <code>ix</code>, moving it from being
+     * called or detached to completing, so that a second call of its
+     * trigger - or its timeout firing - finds nothing to complete.  If it
+     * has a timeout, that is then cancelled.
+     *
+     * @return SYNC if the step's logic has not returned yet, ASYNC if it
+     * has, LATE if the step timed out or the run was cancelled while it
+     * was in flight, or DUPLICATE
+     */
+    private int claim(int ix) {
+        for (;;) {
+            int c = completion;
+            if (c >>> PHASE_BITS != ix) {
+                // Some later step is in flight, so this one is long done
+                return DUPLICATE;
+            }
+            int phase = c & PHASE_MASK;
+            if (phase == CALLING || phase == DETACHED) {
+                if (COMPLETION.compareAndSet(this, c, ix << PHASE_BITS | COMPLETING)) {
+                    disarm();
+                    return phase == CALLING ? SYNC : ASYNC;
+                }
+            } else {
+                return phase == EXPIRED ? LATE : DUPLICATE;
+            }
+        }
+    }
+
+    /**
+     * Claim step <code>ix</code> for its timeout - or, if ix is negative,
+     * whichever step is in flight, for the run's deadline - if its trigger
+     * has not claimed it already.  Called on the timer thread, and when a
+     * cancelled run stops with the step in flight.
+     *
+     * @return The index of the step which should be failed, or -1
+     */
+    int expire(int ix) {
+        for (;;) {
+            int c = completion;
+            int step = c >>> PHASE_BITS;
+            int phase = c & PHASE_MASK;
+            if ((ix >= 0 && step != ix) || (phase != CALLING && phase != DETACHED)) {
+                // Completed, or between steps - in which case the next one
+                // finds the deadline has passed before it starts
+                return -1;
+            }
+            if (COMPLETION.compareAndSet(this, c, step << PHASE_BITS | EXPIRED)) {
+                return step;
+            }
+        }
+    }
+
+    /**
+     * Carry the run on once a trigger has recorded its step's result.  If
+     * the step's logic is still running further down this thread's stack,
+     * the loop up there carries on when it returns, without touching the
+     * work-in-progress count.  If it is running on another thread, the
+     * result is handed to that thread the same way, unless it returns and
+     * detaches first, in which case this thread drives the loop.
+     */
+    private void proceed(int ix, int claimed) {
+        int step = ix << PHASE_BITS;
+        if (claimed == SYNC) {
+            if (caller == Thread.currentThread()) {
+                // Nothing else can move it from completing now
+                COMPLETION.lazySet(this, step | COMPLETED);
+                return;
+            }
+            if (COMPLETION.compareAndSet(this, step | COMPLETING, step | COMPLETED)) {
+                return;
+            }
+        }
+        COMPLETION.lazySet(this, step | IDLE);
+        drive();
+    }
+
+    /**
+     * Called on the loop's thread once step <code>ix</code>'s logic has
+     * returned.
+     *
+     * @return true if the step has already been completed, so the loop
+     * should carry straight on
+     */
+    private boolean detach(int ix) {
+        int step = ix << PHASE_BITS;
+        for (;;) {
+            int c = completion;
+            int phase = c & PHASE_MASK;
+            if (phase == COMPLETED) {
+                COMPLETION.lazySet(this, step | IDLE);
+                return true;
+            } else if (phase == CALLING || phase == COMPLETING) {
+                // Whatever completes it drives the loop
+                if (COMPLETION.compareAndSet(this, c, step | DETACHED)) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stop the timer for the step in flight, if any.
+     */
+    private void disarm() {
+        StepTimeout t = timeout;
+        if (t != null) {
+            timeout = null;
+            t.cancel();
+        }
+    }
+
+    private void duplicate(int ix, Object obj, Throwable thrown) {
+        PromiseDiagnostics.duplicate(ix, chain.steps[ix].name, obj, thrown);
+    }
+
+    @Override
+    public boolean cancel() {
+        if (!STATE.compareAndSet(this, RUNNING, CANCELLED)) {
+            return false;
+        }
+        try {
+            Runnable h = HOOK.getAndSet(this, null);
+            if (h != null) {
+                h.run();
+            }
+        } finally {
+            // If a step is in flight, nothing else may ever drive the loop,
+            // so do it here to report the cancellation
+            drive();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        int s = state;
+        return s == CANCELLED || s == CANCELLED_DONE
+                || (parent != null && parent.isCancelled());
+    }
+
+    void onCancel(Runnable h) {
+        Runnable prev;
+        Runnable hooks;
+        do {
+            prev = hook;
+            hooks = prev == null ? h : new Hooks(prev, h);
+        } while (!HOOK.compareAndSet(this, prev, hooks));
+        hasHook = true;
+        if (isCancelled() && HOOK.compareAndSet(this, hooks, null)) {
+            hooks.run();
+        }
+    }
+
+    long traceId() {
+        return traceId;
+    }
+
+    /**
+     * Register a resource to be released when the tree of runs this belongs
+     * to has finished - a buffer, returned to the passed pool, or else an
+     * AutoCloseable.
+     */
+    void own(Object resource, BufferPool pool) {
+        Execution r = root;
+        Resource res = new Resource(resource, pool);
+        Resource head;
+        do {
+            head = r.resources;
+            if (head == RELEASED) {
+                // Logic which outlived its run - a buffer it asked for is
+                // presumably in use, so only close anything else
+                res.release(false);
+                return;
+            }
+            res.next = head;
+        } while (!RESOURCES.compareAndSet(r, head, res));
+    }
+
+    /**
+     * Keep what the tree of runs this belongs to registered from being
+     * released until a matching call to <code>ended()</code> - for the
+     * trigger the run reports to, if it hands the result on only later.
+     * Must be called before the run has ended, so from that trigger.
+     */
+    void retain() {
+        LIVE.incrementAndGet(root);
+    }
+
+    /**
+     * Called once this run has been reported finished, failed or cancelled,
+     * and by whatever retained it once it is done with the result.
+     */
+    void ended() {
+        Execution r = root;
+        if (LIVE.decrementAndGet(r) == 0) {
+            boolean reuse = !r.abandoned;
+            for (Resource res = RESOURCES.getAndSet(r, RELEASED); res != null && res != RELEASED; res = res.next) {
+                res.release(reuse);
+            }
+        }
+    }
+
+    private void exited(int ix, Throwable thrown) {
+        if (ix < chain.size()) {
+            tracer.stepExited(traceId, ix, chain.steps[ix].name, thrown);
+        }
+    }
+
+    private void measure(boolean failure) {
+        int t = timing;
+        if (t >= 0) {
+            timing = -1;
+            chain.steps[t].metrics.completed(System.nanoTime() - stepStart, failure);
+        }
+    }
+
+    private void drive() {
+        if (WIP.getAndIncrement(this) != 0) {
+            // Either we are inside a step on this thread and it triggered
+            // synchronously, or another thread is just finishing the loop
+            // below and will see the increment
+            return;
+        }
+        loop();
+    }
+
+    @Override
+    public void run() {
+        // Continue the loop on a thread of the executor we were handed to
+        Executor prev = RUNNING_ON.get();
+        RUNNING_ON.set(hopTo);
+        try {
+            loop();
+        } finally {
+            if (prev == null) {
+                RUNNING_ON.remove();
+            } else {
+                RUNNING_ON.set(prev);
+            }
+        }
+    }
+
+    private void loop() {
+        boolean done = false;
+        try {
+            do {
+                boolean again;
+                do {
+                    again = false;
+                    int ix = index;
+                    if (state != RUNNING || (parent != null && parent.isCancelled())) {
+                        stopped();
+                    } else if (ix == chain.size()) {
+                        if (STATE.compareAndSet(this, RUNNING, DONE)) {
+                            finish();
+                        } else {
+                            stopped();
+                        }
+                    } else {
+                        Step step = chain.steps[ix];
+                        if (step.executor != null && RUNNING_ON.get() != step.executor) {
+                            if (handOff(step.executor)) {
+                                // The executor's thread owns the loop now
+                                done = true;
+                                return;
+                            }
+                        } else {
+                            again = runStep(ix, step);
+                        }
+                    }
+                } while (again);
+            } while (WIP.decrementAndGet(this) != 0);
+            done = true;
+        } finally {
+            if (!done) {
+                // Something threw out of a trigger - don't leave the run
+                // wedged for whatever calls in next
+                WIP.set(this, 0);
+            }
+        }
+    }
+
+    private boolean handOff(Executor executor) {
+        hopTo = executor;
+        try {
+            executor.execute(this);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            failed(index, ex, box(kind, value, bits));
+            return false;
+        }
+    }
+
+    /**
+     * Called from the loop once the run is no longer running;  if that is
+     * because it was cancelled, reports the cancellation, once.
+     */
+    private void stopped() {
+        if (!isCancelled()) {
+            return;
+        }
+        int s;
+        do {
+            s = state;
+            if (s == CANCELLED_DONE || s == DONE) {
+                return;
+            }
+        } while (!STATE.compareAndSet(this, s, CANCELLED_DONE));
+        // Stop the timer for the step in flight, if any, from failing it too
+        disarm();
+        // Close out the step in flight, unless its trigger or timeout has
+        // just claimed it, so a trigger called later is ignored rather than
+        // ending the step a second time
+        boolean inFlight = started == index && expire(index) >= 0;
+        if (inFlight) {
+            root.abandoned = true;
+        }
+        if (PromiseMetrics.ENABLED) {
+            measure(true);
+        }
+        int ix = Math.min(index, chain.size() - 1);
+        Object in = started == ix ? box(inputKind, input, inputBits) : box(kind, value, bits);
+        input = value = null;
+        CancellationException ex = new CancellationException("Cancelled at step " + ix);
+        if (inFlight && tracer != null) {
+            exited(ix, ex);
+        }
+        report(ix, ex, in);
+    }
+
+    /**
+     * Run a step's logic.
+     *
+     * @return true if it completed synchronously
+     */
+    @SuppressWarnings("unchecked")
+    private boolean runStep(int ix, Step step) {
+        started = ix;
+        if (hasHook) {
+            // A hook is only for the step which registered it
+            hasHook = false;
+            hook = null;
+        }
+        int k = inputKind = kind;
+        long b = inputBits = bits;
+        Object in = input = value;
+        value = null;
+        try {
+            long limit = step.timeoutNanos;
+            if (context.hasDeadline()) {
+                long remaining = context.remaining(TimeUnit.NANOSECONDS);
+                if (remaining <= 0) {
+                    failed(ix, new TimeoutException("Deadline passed before step "
+                            + ix + " started"), box(k, in, b));
+                    return false;
+                }
+                armDeadline(remaining);
+                if (limit >= remaining) {
+                    // The deadline will fire first anyway
+                    limit = 0;
+                }
+            }
+            caller = Thread.currentThread();
+            // Published to other threads by whatever hands them the trigger
+            COMPLETION.lazySet(this, ix << PHASE_BITS | CALLING);
+            if (limit > 0) {
+                Scheduler.schedule(timeout = new StepTimeout(this, ix, limit), limit);
+            }
+            if (PromiseMetrics.ENABLED && step.metrics != null) {
+                step.metrics.started();
+                timing = ix;
+                stepStart = System.nanoTime();
+            }
+            if (tracer != null) {
+                tracer.stepEntered(traceId, ix, step.name);
+            }
+            if (step.key != null && (in != null || k != Step.OBJECT)) {
+                context.put(step.key, box(k, in, b));
+            }
+            switch (step.kind) {
+                case Step.LONG:
+                    ((LongLogic) step.primitive).run(toLong(k, in, b), new StepTrigger(this, ix), context);
+                    break;
+                case Step.INT:
+                    ((IntLogic) step.primitive).run((int) toLong(k, in, b), new StepTrigger(this, ix), context);
+                    break;
+                case Step.DOUBLE:
+                    ((DoubleLogic) step.primitive).run(toDouble(k, in, b), new StepTrigger(this, ix), context);
+                    break;
+                case Step.BLOCKING:
+                    // The result is passed on from here, so there is no
+                    // trigger for the logic to hold on to or call twice
+                    complete(ix, ((BlockingLogic<Object, ?>) step.primitive).run(box(k, in, b)), null);
+                    break;
+                default:
+                    step.logic.run(box(k, in, b), new StepTrigger(this, ix), context);
+            }
+        } catch (Exception ex) {
+            int claimed = claim(ix);
+            if (claimed < LATE) {
+                completed(ix, ex);
+            } else if (claimed == DUPLICATE) {
+                // The logic called its trigger and then threw
+                duplicate(ix, null, ex);
+            }
+        }
+        return detach(ix);
+    }
+
+    /**
+     * Make sure there is a timer for the context's deadline - one for the
+     * whole run, unless the deadline is tightened along the way.
+     */
+    private void armDeadline(long remaining) {
+        long at = context.deadlineNanos();
+        StepTimeout d = deadline;
+        if (d == null || at != armedFor) {
+            if (d != null) {
+                d.cancel();
+            }
+            armedFor = at;
+            Scheduler.schedule(deadline = new StepTimeout(this, -1, remaining), remaining);
+        }
+    }
+
+    private void disarmDeadline() {
+        StepTimeout d = deadline;
+        if (d != null) {
+            deadline = null;
+            d.cancel();
+        }
+    }
+
+    /**
+     * Fail a step claimed by its timeout, or by the run's deadline if limit
+     * is negative.
+     */
+    void timedOut(int ix, long limit) {
+        root.abandoned = true;
+        Runnable h = HOOK.getAndSet(this, null);
+        if (h != null) {
+            // Let the logic give up on whatever it is waiting for
+            try {
+                h.run();
+            } catch (RuntimeException | Error ex) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+            }
+        }
+        TimeoutException ex = new TimeoutException(limit < 0 ? "Deadline passed while step " + ix + " was running"
+                : "Step " + ix + " did not complete within " + TimeUnit.NANOSECONDS.toMillis(limit) + "ms");
+        if (tracer != null) {
+            exited(ix, ex);
+        }
+        if (PromiseMetrics.ENABLED) {
+            measure(true);
+        }
+        failed(ix, ex, box(inputKind, input, inputBits));
+        // The logic may hold its trigger forever - don't let it pin the input
+        input = null;
+        value = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish() {
+        disarmDeadline();
+        if (tracer != null) {
+            tracer.runFinished(traceId);
+        }
+        try {
+            switch (doneKind) {
+                case Step.LONG:
+                    ((LongTrigger) onDone).trigger(toLong(kind, value, bits), null);
+                    break;
+                case Step.INT:
+                    ((IntTrigger) onDone).trigger((int) toLong(kind, value, bits), null);
+                    break;
+                case Step.DOUBLE:
+                    ((DoubleTrigger) onDone).trigger(toDouble(kind, value, bits), null);
+                    break;
+                default:
+                    ((Trigger<Object>) onDone).trigger(box(kind, value, bits), null);
+            }
+        } finally {
+            ended();
+        }
+    }
+
+    private void failed(int ix, Throwable thrown, Object in) {
+        int s;
+        do {
+            s = state;
+            if (s == CANCELLED_DONE || s == DONE) {
+                // Already reported
+                return;
+            }
+        } while (!STATE.compareAndSet(this, s, s == CANCELLED ? CANCELLED_DONE : DONE));
+        report(ix, thrown, in);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void report(int ix, Throwable thrown, Object in) {
+        disarmDeadline();
+        if (tracer != null) {
+            tracer.runFailed(traceId, ix, thrown);
+        }
+        try {
+            chain.failed(ix, thrown, in, context);
+            if (reportFailures) {
+                ((Trigger<Object>) onDone).trigger(null, thrown);
+            }
+        } finally {
+            ended();
+        }
+    }
+
+    private static Object box(int kind, Object value, long bits) {
+        switch (kind) {
+            case Step.LONG:
+                return bits;
+            case Step.INT:
+                return (int) bits;
+            case Step.DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return value;
+        }
+    }
+
+    private static long toLong(int kind, Object value, long bits) {
+        switch (kind) {
+            case Step.LONG:
+            case Step.INT:
+                return bits;
+            case Step.DOUBLE:
+                return (long) Double.longBitsToDouble(bits);
+            default:
+                return ((Number) value).longValue();
+        }
+    }
+
+    private static double toDouble(int kind, Object value, long bits) {
+        switch (kind) {
+            case Step.LONG:
+            case Step.INT:
+                return bits;
+            case Step.DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return ((Number) value).doubleValue();
+        }
+    }
+
+    private static final class Resource {
+
+        private final Object resource;
+        private final BufferPool pool;
+        Resource next;
+
+        Resource(Object resource, BufferPool pool) {
+            this.resource = resource;
+            this.pool = pool;
+        }
+
+        void release(boolean reuse) {
+            if (pool != null) {
+                if (reuse) {
+                    pool.release((ByteBuffer) resource);
+                }
+                return;
+            }
+            try {
+                ((AutoCloseable) resource).close();
+            } catch (Exception ex) {
+                // One which fails to close must not stop the rest being
+                // released, nor fail a run which has already finished
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+            }
+        }
+    }
+
+    /**
+     * Two hooks registered for the same step.
+     */
+    private static final class Hooks implements Runnable {
+
+        private final Runnable first;
+        private final Runnable second;
+
+        Hooks(Runnable first, Runnable second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void run() {
+            try {
+                first.run();
+            } finally {
+                second.run();
+            }
+        }
+    }
+
+    /**
+     * The trigger passed to a single step's logic.  Each step gets its own,
+     * so that a trigger called again after the run has moved on can only
+     * ever find its own step already completed, never complete a later one.
+     */
+    private static final class StepTrigger implements Trigger<Object>, LongTrigger, IntTrigger, DoubleTrigger {
+
+        private final Execution execution;
+        private final int index;
+
+        StepTrigger(Execution execution, int index) {
+            this.execution = execution;
+            this.index = index;
+        }
+
+        @Override
+        public void trigger(Object obj, Throwable thrown) {
+            execution.complete(index, obj, thrown);
+        }
+
+        @Override
+        public void trigger(long obj, Throwable thrown) {
+            execution.complete(index, Step.LONG, obj, thrown);
+        }
+
+        @Override
+        public void trigger(int obj, Throwable thrown) {
+            execution.complete(index, Step.INT, obj, thrown);
+        }
+
+        @Override
+        public void trigger(double obj, Throwable thrown) {
+            execution.complete(index, Step.DOUBLE, Double.doubleToRawLongBits(obj), thrown);
+        }
+    }
+
+    /**
+     * Fails a step which has not completed in time - a particular step, or
+     * for a run's deadline, whichever is in flight when it fires.  Failure
+     * handlers are run on the executor used for blocking logic rather than
+     * the timer thread, which any number of other timeouts may be waiting
+     * on.
+     */
+    private static final class StepTimeout extends HashedWheelTimer.Timeout implements Runnable {
+
+        private final Execution execution;
+        private final int index;
+        private final long limit;
+        // Published to the executor's thread by execute()
+        private int expired;
+
+        StepTimeout(Execution execution, int index, long limit) {
+            this.execution = execution;
+            this.index = index;
+            this.limit = limit;
+        }
+
+        @Override
+        protected void expire() {
+            int ix = execution.expire(index);
+            if (ix >= 0) {
+                expired = ix;
+                VirtualThreads.executor().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            execution.timedOut(expired, index < 0 ? -1 : limit);
+        }
+    }
+}
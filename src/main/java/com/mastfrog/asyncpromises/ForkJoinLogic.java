@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
+
+/**
+ * Logic which splits its input into chunks, runs logic against each chunk
+ * as a task in a ForkJoinPool, and merges the results, for CPU-bound work
+ * which is worth spreading across cores.
+ * <p>
+ * The chunks are run by a tree of CountedCompleters:  each task halves its
+ * range of chunks, forking one half for an idle worker to steal, until it
+ * is left with one chunk, which it runs.  A chunk's logic may call its
+ * trigger synchronously or later from any thread;  the trigger records the
+ * result and completes the task, and whichever thread completes the last
+ * one runs the merge and passes its result on, so nothing ever blocks
+ * waiting to join.  If a chunk fails, chunks which have not started yet are
+ * skipped, and once those which did start are done, this step fails with
+ * the first failure.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class ForkJoinLogic<T, C, S, R> implements Logic<T, R> {
+
+    private final Function<? super T, ? extends List<? extends C>> splitter;
+    private final Logic<C, S> chunk;
+    private final Function<? super List<S>, ? extends R> merger;
+    private final ForkJoinPool pool;
+
+    ForkJoinLogic(Function<? super T, ? extends List<? extends C>> splitter, Logic<C, S> chunk,
+            Function<? super List<S>, ? extends R> merger, ForkJoinPool pool) {
+        if (splitter == null || chunk == null || merger == null || pool == null) {
+            throw new IllegalArgumentException("Null argument");
+        }
+        this.splitter = splitter;
+        this.chunk = chunk;
+        this.merger = merger;
+        this.pool = pool;
+    }
+
+    @Override
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        Object[] chunks = splitter.apply(data).toArray();
+        Merge<C, S, R> merge = new Merge<>(chunk, merger, chunks, next, context);
+        if (chunks.length == 0) {
+            merge.onCompletion(merge);
+            return;
+        }
+        pool.execute(merge);
+    }
+
+    private static final class Merge<C, S, R> extends CountedCompleter<Void> {
+
+        // Never serialized - ForkJoinTask just happens to be Serializable
+        private static final long serialVersionUID = 1;
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Merge, Throwable> FAILURE
+                = AtomicReferenceFieldUpdater.newUpdater(Merge.class, Throwable.class, "failure");
+        private final Logic<C, S> chunk;
+        private final Function<? super List<S>, ? extends R> merger;
+        private final Object[] chunks;
+        private final Object[] results;
+        private final Trigger<R> next;
+        private final PromiseContext context;
+        private volatile Throwable failure;
+
+        Merge(Logic<C, S> chunk, Function<? super List<S>, ? extends R> merger, Object[] chunks, Trigger<R> next, PromiseContext context) {
+            this.chunk = chunk;
+            this.merger = merger;
+            this.chunks = chunks;
+            this.results = new Object[chunks.length];
+            this.next = next;
+            this.context = context;
+        }
+
+        @Override
+        public void compute() {
+            // Completes this task, via propagation, once every chunk has
+            new Part<>(this, this, 0, chunks.length).compute();
+        }
+
+        void failed(Throwable thrown) {
+            FAILURE.compareAndSet(this, null, thrown);
+        }
+
+        boolean stopped() {
+            if (failure != null) {
+                return true;
+            }
+            if (context.isCancelled()) {
+                failed(new CancellationException());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onCompletion(CountedCompleter<?> caller) {
+            Throwable thrown = failure;
+            if (thrown != null) {
+                next.trigger(null, thrown);
+                return;
+            }
+            R merged;
+            try {
+                merged = merger.apply((List<S>) Arrays.asList(results));
+            } catch (Exception ex) {
+                next.trigger(null, ex);
+                return;
+            }
+            next.trigger(merged, null);
+        }
+    }
+
+    private static final class Part<C, S, R> extends CountedCompleter<Void> implements Trigger<S> {
+
+        private static final long serialVersionUID = 1;
+        private final Merge<C, S, R> merge;
+        private final int lo;
+        private int hi;
+
+        Part(CountedCompleter<?> parent, Merge<C, S, R> merge, int lo, int hi) {
+            super(parent);
+            this.merge = merge;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void compute() {
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                addToPendingCount(1);
+                new Part<>(this, merge, mid, hi).fork();
+                hi = mid;
+            }
+            if (merge.stopped()) {
+                tryComplete();
+                return;
+            }
+            try {
+                merge.chunk.run((C) merge.chunks[lo], this, merge.context.copy());
+            } catch (Exception ex) {
+                trigger(null, ex);
+            }
+        }
+
+        @Override
+        public void trigger(S obj, Throwable thrown) {
+            // The tag guards against logic which calls its trigger twice
+            if (!compareAndSetForkJoinTaskTag((short) 0, (short) 1)) {
+                return;
+            }
+            if (thrown != null) {
+                merge.failed(thrown);
+            } else {
+                merge.results[lo] = obj;
+            }
+            tryComplete();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for large numbers of short-lived timeouts, most of which will be
+ * cancelled before they fire - step timeouts and batch windows.  Timeouts are
+ * kept in a ring of buckets, one per tick, each a doubly linked list, so
+ * scheduling and cancelling are constant time no matter how many are
+ * pending, at the price of firing up to a tick late.
+ * <p>
+ * A single daemon thread owns the wheel.  Other threads never touch it
+ * directly:  new timeouts and cancelled ones are passed to it through
+ * queues, and it moves them into or out of their buckets as it advances.
+ * When nothing is pending, the thread parks until something is scheduled,
+ * rather than ticking over an empty wheel.
+ * </p>
+ * <p>
+ * Timeouts are run on the timer thread, so they should do no more than hand
+ * off real work.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startTime;
+    private final Thread worker;
+    // Only touched by the worker
+    private long tick;
+
+    HashedWheelTimer(String name, long tickNanos, int buckets) {
+        if (Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException("Bucket count must be a power of two: " + buckets);
+        }
+        this.tickNanos = tickNanos;
+        this.mask = buckets - 1;
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a timeout, which must not already have been scheduled.
+     *
+     * @param timeout The timeout
+     * @param delayNanos How long from now it should fire
+     */
+    void schedule(Timeout timeout, long delayNanos) {
+        timeout.timer = this;
+        timeout.deadline = System.nanoTime() + Math.max(0, delayNanos) - startTime;
+        added.offer(timeout);
+        if (pending.getAndIncrement() == 0) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void work() {
+        for (;;) {
+            if (pending.get() == 0) {
+                LockSupport.park(this);
+                if (pending.get() == 0) {
+                    continue;
+                }
+                // The wheel is empty, so it can skip straight to the present
+                tick = (System.nanoTime() - startTime) / tickNanos;
+            }
+            long deadline = (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // If it is still in the added queue, transferAdded() skips it
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long ticks = timeout.deadline / tickNanos;
+            timeout.rounds = Math.max(0, (ticks - tick) / wheel.length);
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A timeout, subclassed by whatever needs to be notified when it fires.
+     * Cancelling and firing race for a single state change, so exactly one
+     * of them wins.
+     */
+    abstract static class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        private volatile int state;
+        private HashedWheelTimer timer;
+        // Only touched by the worker after scheduling
+        private long deadline;
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        /**
+         * Cancel this timeout, if it has not already fired.
+         *
+         * @return true if it was cancelled by this call, false if it had
+         * already fired or been cancelled
+         */
+        final boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            if (timer != null) {
+                timer.cancelled.offer(this);
+            }
+            return true;
+        }
+
+        /**
+         * Called on the timer thread when the timeout fires.
+         */
+        protected abstract void expire();
+    }
+
+    private final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.next = timeout.prev = null;
+            timeout.bucket = null;
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    pending.decrementAndGet();
+                    if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.expire();
+                        } catch (RuntimeException | Error ex) {
+                            Thread t = Thread.currentThread();
+                            t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+                        }
+                    }
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
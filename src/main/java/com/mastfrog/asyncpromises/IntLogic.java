@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * Logic which takes and produces a int, for chains of numeric logic which
+ * should not box values as they pass them along.  When the preceding step
+ * is not a primitive one, its output must be a Number, and is converted.
+ * Subsequent steps which are not primitive receive the result as a Integer.
+ *
+ * @author Tim Boudreau
+ */
+public interface IntLogic {
+
+    /**
+     * Perform the operation that this step does.
+     *
+     * @param data The input data
+     * @param next This object's <code>trigger()</code> method <b>must always</b>
+     * be called once this logic has run, to trigger the next one
+     * @param context The PromiseContext, which can be used for Logic implementations
+     * to communicate with each other
+     * @throws Exception If something goes wrong, in which case the owning
+     * promise's FailureHandler will be invoked.
+     */
+    public void run(int data, IntTrigger next, PromiseContext context) throws Exception;
+
+}
@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logic which reads and writes ByteBuffers through NIO channels, passing
+ * each step's outcome on from the thread the channel completes it on.
+ * Reads fill direct buffers from <code>PromiseContext.buffer()</code> and
+ * pass them on as they are, and writes pass on the buffer they were given
+ * once it has been written, so bytes move from channel to channel without
+ * being copied into arrays along the way.  The buffers go back to the
+ * context's pool when the run finishes, so nothing needs to release them.
+ * <p>
+ * A file channel is shared by every run, so file logic takes one directly;
+ * a socket belongs to one run, so socket logic looks it up in the context
+ * under a key.  Socket operations are timed out at the context's deadline,
+ * if it has one.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class NioLogic {
+
+    private NioLogic() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Logic which reads a file, starting at the position it is passed, until
+     * it has read <code>maxBytes</code> or reached the end of the file,
+     * passing on a flipped buffer of what it read.
+     *
+     * @param channel The file
+     * @param maxBytes The most bytes to read
+     * @return Logic
+     */
+    public static Logic<Long, ByteBuffer> readFile(final AsynchronousFileChannel channel, final int maxBytes) {
+        checkSize(maxBytes);
+        return new Logic<Long, ByteBuffer>() {
+            @Override
+            public void run(Long position, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                new FileRead(channel, context.buffer(maxBytes), position, next).read();
+            }
+        };
+    }
+
+    /**
+     * Logic which writes the buffer it is passed to a file, at the position
+     * stored in the context under the passed key (0 if none is), advancing
+     * the position by the number of bytes written, and passes the buffer on.
+     *
+     * @param channel The file
+     * @param position The key of the position
+     * @return Logic
+     */
+    public static Logic<ByteBuffer, ByteBuffer> writeFile(final AsynchronousFileChannel channel, final PromiseContext.LongKey position) {
+        return new Logic<ByteBuffer, ByteBuffer>() {
+            @Override
+            public void run(ByteBuffer data, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                new FileWrite(channel, data, position, context, next).write();
+            }
+        };
+    }
+
+    /**
+     * Logic which maps the file at the path it is passed into memory, read
+     * only, and passes on the mapped buffer - for reading large files
+     * without copying them.  The file is opened and mapped in the calling
+     * thread, which is cheap, but is a system call.
+     *
+     * @return Logic
+     */
+    public static Logic<Path, ByteBuffer> mapFile() {
+        return new Logic<Path, ByteBuffer>() {
+            @Override
+            public void run(Path data, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                MappedByteBuffer mapped;
+                try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+                    // The mapping outlives the channel
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                next.trigger(mapped, null);
+            }
+        };
+    }
+
+    /**
+     * Logic which reads whatever is available from a socket, up to
+     * <code>maxBytes</code>, and passes on a flipped buffer of it - which is
+     * empty if the other end has closed the connection.  The input is
+     * ignored.
+     *
+     * @param <T> The input type
+     * @param channel The key the socket is stored under in the context
+     * @param maxBytes The most bytes to read
+     * @return Logic
+     */
+    public static <T> Logic<T, ByteBuffer> readSocket(final PromiseContext.Key<AsynchronousSocketChannel> channel, final int maxBytes) {
+        checkSize(maxBytes);
+        return new Logic<T, ByteBuffer>() {
+            @Override
+            public void run(T data, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                new SocketRead(socket(channel, context), context.buffer(maxBytes), next).read(context);
+            }
+        };
+    }
+
+    /**
+     * Logic which writes all of the buffer it is passed to a socket, and
+     * passes the buffer on.
+     *
+     * @param channel The key the socket is stored under in the context
+     * @return Logic
+     */
+    public static Logic<ByteBuffer, ByteBuffer> writeSocket(final PromiseContext.Key<AsynchronousSocketChannel> channel) {
+        return new Logic<ByteBuffer, ByteBuffer>() {
+            @Override
+            public void run(ByteBuffer data, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                new SocketWrite(socket(channel, context), data, context, next).write();
+            }
+        };
+    }
+
+    private static void checkSize(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + maxBytes);
+        }
+    }
+
+    private static AsynchronousSocketChannel socket(PromiseContext.Key<AsynchronousSocketChannel> key, PromiseContext context) {
+        AsynchronousSocketChannel result = context.get(key);
+        if (result == null) {
+            throw new IllegalStateException("No socket in the context under " + key);
+        }
+        return result;
+    }
+
+    private static long timeout(PromiseContext context) {
+        return context.hasDeadline() ? Math.max(1, context.remaining(TimeUnit.NANOSECONDS)) : 0;
+    }
+
+    private static final class FileRead implements CompletionHandler<Integer, Void> {
+
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final Trigger<ByteBuffer> next;
+        private long position;
+
+        FileRead(AsynchronousFileChannel channel, ByteBuffer buffer, long position, Trigger<ByteBuffer> next) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            this.next = next;
+        }
+
+        void read() {
+            try {
+                channel.read(buffer, position, null, this);
+            } catch (RuntimeException ex) {
+                failed(ex, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (count < 0 || !buffer.hasRemaining()) {
+                // Through Buffer, which has the only flip() on Java 8
+                ((Buffer) buffer).flip();
+                next.trigger(buffer, null);
+                return;
+            }
+            position += count;
+            read();
+        }
+
+        @Override
+        public void failed(Throwable thrown, Void attachment) {
+            next.trigger(null, thrown);
+        }
+    }
+
+    private static final class FileWrite implements CompletionHandler<Integer, Void> {
+
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final PromiseContext.LongKey key;
+        private final PromiseContext context;
+        private final Trigger<ByteBuffer> next;
+        private long position;
+
+        FileWrite(AsynchronousFileChannel channel, ByteBuffer buffer, PromiseContext.LongKey key, PromiseContext context, Trigger<ByteBuffer> next) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.key = key;
+            this.context = context;
+            this.next = next;
+            this.position = context.getLong(key);
+        }
+
+        void write() {
+            try {
+                channel.write(buffer, position, null, this);
+            } catch (RuntimeException ex) {
+                failed(ex, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            position += count;
+            if (buffer.hasRemaining()) {
+                write();
+                return;
+            }
+            context.putLong(key, position);
+            next.trigger(buffer, null);
+        }
+
+        @Override
+        public void failed(Throwable thrown, Void attachment) {
+            next.trigger(null, thrown);
+        }
+    }
+
+    private static final class SocketRead implements CompletionHandler<Integer, Void> {
+
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer buffer;
+        private final Trigger<ByteBuffer> next;
+
+        SocketRead(AsynchronousSocketChannel channel, ByteBuffer buffer, Trigger<ByteBuffer> next) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.next = next;
+        }
+
+        void read(PromiseContext context) {
+            try {
+                channel.read(buffer, timeout(context), TimeUnit.NANOSECONDS, null, this);
+            } catch (RuntimeException ex) {
+                failed(ex, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            ((Buffer) buffer).flip();
+            next.trigger(buffer, null);
+        }
+
+        @Override
+        public void failed(Throwable thrown, Void attachment) {
+            next.trigger(null, thrown);
+        }
+    }
+
+    private static final class SocketWrite implements CompletionHandler<Integer, Void> {
+
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer buffer;
+        private final PromiseContext context;
+        private final Trigger<ByteBuffer> next;
+
+        SocketWrite(AsynchronousSocketChannel channel, ByteBuffer buffer, PromiseContext context, Trigger<ByteBuffer> next) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.context = context;
+            this.next = next;
+        }
+
+        void write() {
+            try {
+                channel.write(buffer, timeout(context), TimeUnit.NANOSECONDS, null, this);
+            } catch (RuntimeException ex) {
+                failed(ex, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (buffer.hasRemaining()) {
+                write();
+            } else {
+                next.trigger(buffer, null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable thrown, Void attachment) {
+            next.trigger(null, thrown);
+        }
+    }
+}
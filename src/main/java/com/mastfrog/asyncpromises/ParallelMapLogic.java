@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Logic which runs a promise against each element of a collection, with at
+ * most a fixed number running at once, and passes on a list of the results in
+ * the collection's iteration order.  If any fails, this step fails with its
+ * exception and no further elements are started.
+ *
+ * @author Tim Boudreau
+ */
+final class ParallelMapLogic<T, R> implements Logic<Collection<T>, List<R>> {
+
+    private final AsyncPromise<T, R> each;
+    private final int maxConcurrency;
+
+    ParallelMapLogic(AsyncPromise<T, R> each, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1: " + maxConcurrency);
+        }
+        this.each = each;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void run(Collection<T> data, Trigger<List<R>> next, PromiseContext context) throws Exception {
+        Object[] items = data.toArray();
+        if (items.length == 0) {
+            next.trigger(Collections.<R>emptyList(), null);
+            return;
+        }
+        MapRun<T, R> run = new MapRun<>(each, items, next, context);
+        for (int i = 0; i < Math.min(maxConcurrency, items.length); i++) {
+            run.launch();
+        }
+    }
+
+    /**
+     * Counts down the elements yet to complete, as AllLogic does.  Each of
+     * up to maxConcurrency "lanes" claims the next unstarted element when
+     * its previous one completes.
+     */
+    private static final class MapRun<T, R> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<MapRun> REMAINING
+                = AtomicIntegerFieldUpdater.newUpdater(MapRun.class, "remaining");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<MapRun.Item> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(MapRun.Item.class, "state");
+        private final AsyncPromise<T, R> each;
+        private final Object[] items;
+        private final Object[] results;
+        private final Trigger<List<R>> next;
+        private final PromiseContext context;
+        private final AtomicInteger nextItem = new AtomicInteger();
+        private volatile int remaining;
+
+        MapRun(AsyncPromise<T, R> each, Object[] items, Trigger<List<R>> next, PromiseContext context) {
+            this.remaining = items.length;
+            this.each = each;
+            this.items = items;
+            this.results = new Object[items.length];
+            this.next = next;
+            this.context = context;
+        }
+
+        @SuppressWarnings("unchecked")
+        void launch() {
+            // Loop rather than recursing when elements complete synchronously
+            for (;;) {
+                int ix = nextItem.getAndIncrement();
+                if (ix >= items.length || remaining < 0) {
+                    return;
+                }
+                Item item = new Item(ix);
+                each.startBranch((T) items[ix], context.copy(), item);
+                if (STATE.compareAndSet(item, Item.RUNNING, Item.RETURNED)) {
+                    // Still running - its trigger will continue this lane
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void succeeded(int index, R result) {
+            results[index] = result;
+            if (REMAINING.decrementAndGet(this) == 0) {
+                next.trigger((List<R>) Arrays.asList(results), null);
+            }
+        }
+
+        void failed(Throwable thrown) {
+            if (REMAINING.getAndSet(this, -1) > 0) {
+                next.trigger(null, thrown);
+            }
+        }
+
+        private final class Item implements Trigger<R> {
+
+            static final int RUNNING = 0;
+            static final int RETURNED = 1;
+            static final int COMPLETED = 2;
+            private final int index;
+            // Not private, so the updater in the enclosing class can reach
+            // it on JDKs without nestmates
+            volatile int state;
+
+            Item(int index) {
+                this.index = index;
+            }
+
+            @Override
+            public void trigger(R obj, Throwable thrown) {
+                if (thrown != null) {
+                    failed(thrown);
+                } else {
+                    succeeded(index, obj);
+                }
+                if (!STATE.compareAndSet(this, RUNNING, COMPLETED)) {
+                    // The lane's loop has already moved on - continue it here
+                    launch();
+                }
+            }
+        }
+    }
+}
@@ -23,27 +23,331 @@
  */
 package com.mastfrog.asyncpromises;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Allows individual Logics to pass data to other Logics later in the sequence,
  * in the case of compound promises.
+ * <p>
+ * Each key is assigned a small integer index when it is created, and the
+ * context stores values in an array indexed by it, grown on demand - so
+ * <code>put()</code> and <code>get()</code> are a bounds check and an array
+ * access.  Keys are meant to be long-lived (typically static) constants;  if
+ * an application creates more than a few hundred, those beyond that are
+ * stored in a map instead, so the arrays stay small.
+ * </p>
+ * <p>
+ * Primitive values can be stored without boxing using LongKey, IntKey and
+ * DoubleKey, which index a separate array of longs.
+ * </p>
  *
  * @author Tim Boudreau
  */
 public class PromiseContext {
 
-    private final Map<Key<?>, Object> map = new IdentityHashMap<>();
+    private static final AtomicInteger KEYS = new AtomicInteger();
+    private static final AtomicInteger PRIMITIVE_KEYS = new AtomicInteger();
+    private static final int DENSE_LIMIT = 256;
+    private static final Object[] EMPTY = new Object[0];
+    private static final long[] EMPTY_PRIMITIVES = new long[0];
+    private Object[] values = EMPTY;
+    private long[] primitives = EMPTY_PRIMITIVES;
+    // Only for keys beyond DENSE_LIMIT, so almost always null
+    private Map<Object, Object> overflow;
+    private boolean hasDeadline;
+    private long deadline;
+    private BufferPool buffers;
+    // The run this context belongs to, if any
+    Execution execution;
 
     public <T> PromiseContext put(Key<T> key, T obj) {
-        map.put(key, key.cast(obj));
+        int ix = key.index;
+        if (ix < values.length) {
+            values[ix] = obj;
+        } else if (ix < DENSE_LIMIT) {
+            values = Arrays.copyOf(values, Math.min(DENSE_LIMIT,
+                    Math.max(ix + 1, Math.max(8, values.length * 2))));
+            values[ix] = obj;
+        } else {
+            overflow().put(key, obj);
+        }
+        return this;
+    }
+
+    private Map<Object, Object> overflow() {
+        if (overflow == null) {
+            overflow = new IdentityHashMap<>();
+        }
+        return overflow;
+    }
+
+    public PromiseContext putLong(LongKey key, long value) {
+        putBits(key, key.index, value);
+        return this;
+    }
+
+    public PromiseContext putInt(IntKey key, int value) {
+        putBits(key, key.index, value);
         return this;
     }
 
+    public PromiseContext putDouble(DoubleKey key, double value) {
+        putBits(key, key.index, Double.doubleToRawLongBits(value));
+        return this;
+    }
+
+    /**
+     * Get a long value;  returns 0 if none has been stored.
+     *
+     * @param key The key
+     * @return The value
+     */
+    public long getLong(LongKey key) {
+        return getBits(key, key.index);
+    }
+
+    /**
+     * Get an int value;  returns 0 if none has been stored.
+     *
+     * @param key The key
+     * @return The value
+     */
+    public int getInt(IntKey key) {
+        return (int) getBits(key, key.index);
+    }
+
+    /**
+     * Get a double value;  returns 0 if none has been stored.
+     *
+     * @param key The key
+     * @return The value
+     */
+    public double getDouble(DoubleKey key) {
+        return Double.longBitsToDouble(getBits(key, key.index));
+    }
+
+    private void putBits(Object key, int ix, long bits) {
+        if (ix < primitives.length) {
+            primitives[ix] = bits;
+        } else if (ix < DENSE_LIMIT) {
+            primitives = Arrays.copyOf(primitives, Math.min(DENSE_LIMIT,
+                    Math.max(ix + 1, Math.max(8, primitives.length * 2))));
+            primitives[ix] = bits;
+        } else {
+            overflow().put(key, bits);
+        }
+    }
+
+    private long getBits(Object key, int ix) {
+        if (ix < primitives.length) {
+            return primitives[ix];
+        }
+        Object result = overflow == null ? null : overflow.get(key);
+        return result == null ? 0 : (Long) result;
+    }
+
+    @SuppressWarnings("unchecked")
     public <T> T get(Key<T> key) {
-        Object o = map.get(key);
-        return key.cast(o);
+        int ix = key.index;
+        if (ix < values.length) {
+            // Only put() can have stored it, so it is a T
+            return (T) values[ix];
+        }
+        return overflow == null ? null : (T) overflow.get(key);
+    }
+
+    /**
+     * Set a deadline for the run this context belongs to - any step still
+     * waiting on its logic when the deadline passes fails with a
+     * TimeoutException, and steps which have not started yet fail without
+     * being run.  A deadline can only be tightened:  if the context already
+     * has an earlier one, it is kept.
+     *
+     * @param timeout The time from now
+     * @param unit The unit of the timeout
+     * @return this
+     */
+    public PromiseContext deadline(long timeout, TimeUnit unit) {
+        long candidate = System.nanoTime() + unit.toNanos(timeout);
+        if (!hasDeadline || candidate - deadline < 0) {
+            deadline = candidate;
+            hasDeadline = true;
+        }
+        return this;
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * Get the deadline as a value of System.nanoTime(), if there is one.
+     */
+    long deadlineNanos() {
+        return deadline;
+    }
+
+    /**
+     * Get the time remaining until the deadline, which may be negative if
+     * it has passed, or Long.MAX_VALUE if there is none.
+     *
+     * @param unit The unit
+     * @return The time remaining
+     */
+    public long remaining(TimeUnit unit) {
+        return hasDeadline ? unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * Determine if the run this context belongs to has been cancelled, so
+     * that long-running logic can give up early.
+     *
+     * @return true if it has been cancelled
+     */
+    public boolean isCancelled() {
+        return execution != null && execution.isCancelled();
+    }
+
+    /**
+     * Register a hook to be called if the run this context belongs to is
+     * cancelled, or the current step times out, while that step is in
+     * flight - to abort an I/O operation, for example.  It should be called
+     * from the step's logic, before it calls its trigger;  the hook is
+     * discarded once the next step starts.  A step may register more than
+     * one, which are called in the order they were registered.  If the run
+     * has already been cancelled, the hook is called immediately.
+     *
+     * @param hook The hook
+     * @return this
+     */
+    public PromiseContext onCancel(Runnable hook) {
+        if (execution != null) {
+            execution.onCancel(hook);
+        }
+        return this;
+    }
+
+    /**
+     * Get the trace id of the run this context belongs to, to pass on to
+     * downstream services, if a PromiseTracer was installed when the run
+     * started.
+     *
+     * @return A trace id, or 0 if the run is not traced
+     */
+    public long traceId() {
+        return execution == null ? 0 : execution.traceId();
+    }
+
+    /**
+     * Get the pool steps should allocate direct buffers from - the shared
+     * pool unless another has been set.
+     *
+     * @return A buffer pool
+     */
+    public BufferPool buffers() {
+        return buffers == null ? BufferPool.shared() : buffers;
+    }
+
+    /**
+     * Set the pool later steps should allocate direct buffers from.
+     *
+     * @param pool A buffer pool
+     * @return this
+     */
+    public PromiseContext useBuffers(BufferPool pool) {
+        buffers = pool;
+        return this;
+    }
+
+    /**
+     * Get a direct buffer from this context's pool, which is returned to
+     * the pool when the run this context belongs to has finished - whether
+     * it succeeds, fails or is cancelled - so it can be passed from step to
+     * step without anything having to release it.  Anything which needs
+     * its contents after that, such as the trigger the run's result goes
+     * to, must copy them before returning - except that runs started by
+     * <code>startAll()</code> are not released until their results have
+     * been passed to its <code>onEach</code>.  If the context does not
+     * belong to a run, the buffer is simply never returned.
+     *
+     * @param bytes The number of bytes needed
+     * @return A cleared buffer whose limit is the number of bytes
+     */
+    public ByteBuffer buffer(int bytes) {
+        BufferPool pool = buffers();
+        ByteBuffer result = pool.acquire(bytes);
+        if (execution != null) {
+            execution.own(result, pool);
+        }
+        return result;
+    }
+
+    /**
+     * Register something to be closed when the run this context belongs to
+     * has finished - whether it succeeds, fails or is cancelled.  Runs
+     * started as branches of this one, by <code>all()</code> for example,
+     * count as part of it, so it is closed once they have all finished too.
+     * If the run has already finished, it is closed immediately.  If the
+     * context does not belong to a run, it is not closed.
+     *
+     * @param <T> The type
+     * @param resource The thing to close
+     * @return The resource
+     */
+    public <T extends AutoCloseable> T closeWhenDone(T resource) {
+        if (resource == null) {
+            throw new IllegalArgumentException("Null resource");
+        }
+        if (execution != null) {
+            execution.own(resource, null);
+        }
+        return resource;
+    }
+
+    /**
+     * Create a copy of this context, for a branch which runs concurrently
+     * with others and so must not share one.
+     *
+     * @return A new context with the same contents
+     */
+    PromiseContext copy() {
+        PromiseContext result = new PromiseContext();
+        result.execution = execution;
+        result.buffers = buffers;
+        result.hasDeadline = hasDeadline;
+        result.deadline = deadline;
+        if (values.length > 0) {
+            result.values = values.clone();
+        }
+        if (primitives.length > 0) {
+            result.primitives = primitives.clone();
+        }
+        if (overflow != null) {
+            result.overflow = new IdentityHashMap<>(overflow);
+        }
+        return result;
+    }
+
+    /**
+     * Take on the contents of a copy of this context made with
+     * <code>copy()</code>, once whatever ran with it has succeeded and
+     * nothing else will use it.
+     *
+     * @param copy The copy
+     */
+    void adopt(PromiseContext copy) {
+        values = copy.values;
+        primitives = copy.primitives;
+        overflow = copy.overflow;
+        hasDeadline = copy.hasDeadline;
+        deadline = copy.deadline;
+        buffers = copy.buffers;
     }
 
     /**
@@ -57,15 +361,71 @@ public class PromiseContext {
      * @return A key
      */
     public static <T> Key<T> newKey(Class<T> key) {
-        return new Key<>(key);
+        return new Key<>(key, KEYS.getAndIncrement());
+    }
+
+    /**
+     * Create a key for storing long values without boxing them.
+     *
+     * @return A key
+     */
+    public static LongKey newLongKey() {
+        return new LongKey(PRIMITIVE_KEYS.getAndIncrement());
+    }
+
+    /**
+     * Create a key for storing int values without boxing them.
+     *
+     * @return A key
+     */
+    public static IntKey newIntKey() {
+        return new IntKey(PRIMITIVE_KEYS.getAndIncrement());
+    }
+
+    /**
+     * Create a key for storing double values without boxing them.
+     *
+     * @return A key
+     */
+    public static DoubleKey newDoubleKey() {
+        return new DoubleKey(PRIMITIVE_KEYS.getAndIncrement());
+    }
+
+    public static final class LongKey {
+
+        private final int index;
+
+        LongKey(int index) {
+            this.index = index;
+        }
+    }
+
+    public static final class IntKey {
+
+        private final int index;
+
+        IntKey(int index) {
+            this.index = index;
+        }
+    }
+
+    public static final class DoubleKey {
+
+        private final int index;
+
+        DoubleKey(int index) {
+            this.index = index;
+        }
     }
 
     public static final class Key<T> {
 
         private final Class<T> type;
+        private final int index;
 
-        Key(Class<T> type) {
+        Key(Class<T> type, int index) {
             this.type = type;
+            this.index = index;
         }
 
         public T cast(Object o) {
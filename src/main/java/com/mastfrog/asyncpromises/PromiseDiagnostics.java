@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts calls of a trigger which were dropped because the step they were
+ * for had already been completed, and passes them to a listener if one is
+ * installed.  Logic is supposed to call its trigger exactly once;  a second
+ * call is never allowed to run the rest of the chain again, but is usually
+ * a bug worth knowing about.
+ *
+ * @author Tim Boudreau
+ */
+public final class PromiseDiagnostics {
+
+    private static volatile DuplicateTriggerListener listener;
+    private static final LongAdder DUPLICATES = new LongAdder();
+
+    private PromiseDiagnostics() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Install a listener, replacing any existing one.
+     *
+     * @param listener A listener, or null to remove it
+     */
+    public static void install(DuplicateTriggerListener listener) {
+        PromiseDiagnostics.listener = listener;
+    }
+
+    /**
+     * Get the number of duplicate trigger calls dropped since the JVM
+     * started.
+     *
+     * @return A count
+     */
+    public static long duplicateTriggers() {
+        return DUPLICATES.sum();
+    }
+
+    static void duplicate(int step, String name, Object value, Throwable thrown) {
+        DUPLICATES.increment();
+        DuplicateTriggerListener l = listener;
+        if (l != null) {
+            l.duplicateTrigger(step, name, value, thrown);
+        }
+    }
+}
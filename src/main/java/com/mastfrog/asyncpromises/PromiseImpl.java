@@ -24,135 +24,119 @@
 package com.mastfrog.asyncpromises;
 
 import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.concurrent.Executor;
 
 /**
- * Implementation of a single promise.
+ * Implementation of a single promise.  Instances hold only the definition of
+ * a step - the logic, key and failure handler;  when started, they are
+ * compiled into a Chain, and everything belonging to one execution lives in
+ * the Execution created for it, so a single instance may be started
+ * concurrently.
  *
  * @author Tim Boudreau
  */
 final class PromiseImpl<T, R> extends AsyncPromise<T, R> {
 
-    private PromiseContext context;
-    private AsyncPromise<?, T> parent;
     private FailureHandler onFailure;
-    private final LogicWrapper<R> logic;
+    private final Logic<T, R> logic;
+    private final Object primitive;
+    private final int kind;
+    private final Executor executor;
     private Key<T> key;
+    long timeoutNanos;
+    String name;
 
     PromiseImpl(final SimpleLogic<T, R> logic) {
+        this(logic, null);
+    }
+
+    PromiseImpl(final SimpleLogic<T, R> logic, Executor executor) {
         this(new Logic<T,R>(){
 
             @Override
             public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
                 logic.run(data, next);
             }
-        });
+        }, executor);
+    }
+
+    PromiseImpl(BlockingLogic<T, R> logic, Executor executor) {
+        // Run directly rather than through a trigger - an exception goes to
+        // the failure handlers the same way it would for any other logic
+        this(Step.BLOCKING, logic, executor);
     }
 
     PromiseImpl(Logic<T, R> logic) {
-        this.logic = new LogicWrapper<>(logic);
+        this(logic, null);
     }
 
-    @Override
-    public PromiseImpl<T, R> usingKey(PromiseContext.Key<T> key) {
-        this.key = key;
-        return this;
+    PromiseImpl(Logic<T, R> logic, Executor executor) {
+        this.logic = logic;
+        this.executor = executor;
+        this.primitive = null;
+        this.kind = Step.OBJECT;
     }
 
-    @Override
-    public <S> AsyncPromise<T, S> then(AsyncPromise<R, S> logic) {
-        WrapperPromise<T, R, S> p = new WrapperPromise<>(this, logic);
-        return p;
+    private PromiseImpl(int kind, Object primitive) {
+        this(kind, primitive, null);
     }
 
-    @Override
-    public PromiseImpl<T, R> start(T input, Trigger<R> trigger) {
-        if (input != null && key != null) {
-            context().put(key, input);
-        }
-        try {
-            logic.run(input, trigger, context());
-        } catch (Exception ex) {
-            failed(ex, key, input);
-        }
-        return this;
+    private PromiseImpl(int kind, Object primitive, Executor executor) {
+        this.logic = null;
+        this.executor = executor;
+        this.primitive = primitive;
+        this.kind = kind;
     }
 
-    @Override
-    Key<T> key() {
-        return key;
+    static <T> PromiseImpl<T, Long> forLong(LongLogic logic) {
+        return new PromiseImpl<>(Step.LONG, logic);
     }
 
-    @Override
-    <R> void failed(Throwable thrown, Key<R> key, R input) {
-        boolean propagate = true;
-        if (hasFailureHandler()) {
-            propagate = onFailure.onFailure(key, input, thrown, context());
-        }
-        if (propagate && parent != null) {
-            parent.failed(thrown, key, input);
-        }
+    static <T> PromiseImpl<T, Integer> forInt(IntLogic logic) {
+        return new PromiseImpl<>(Step.INT, logic);
+    }
+
+    static <T> PromiseImpl<T, Double> forDouble(DoubleLogic logic) {
+        return new PromiseImpl<>(Step.DOUBLE, logic);
     }
 
     @Override
-    public AsyncPromise<T, R> onFailure(FailureHandler failure) {
-        if (parent != null && !parent.hasFailureHandler()) {
-            parent.onFailure(failure);
-        } else {
-            this.onFailure = failure;
-        }
+    public PromiseImpl<T, R> usingKey(PromiseContext.Key<T> key) {
+        editable(true);
+        setKey(key);
+        changed(true);
         return this;
     }
 
-    @Override
-    void setParent(AsyncPromise<?, T> parent) {
-        if (this.parent != null) {
-            throw new IllegalStateException("This promise is already part of a chain");
-        }
-        this.parent = parent;
+    void setKey(Key<T> key) {
+        this.key = key;
     }
 
     @Override
-    PromiseContext context() {
-        if (parent != null) {
-            return parent.context();
-        }
-        if (context == null) {
-            context = new PromiseContext();
-        }
-        return context;
+    public <S> AsyncPromise<T, S> then(AsyncPromise<R, S> logic) {
+        WrapperPromise<T, R, S> p = new WrapperPromise<>(this, logic);
+        return p;
     }
 
     @Override
-    boolean hasFailureHandler() {
-        return this.onFailure != null;
+    Key<T> key() {
+        return key;
     }
 
-    private final class LogicWrapper<R> implements Logic<T, R>, Trigger<R> {
-
-        private final Logic<T, R> real;
-        private Trigger<R> next;
-        private T data;
-
-        public LogicWrapper(Logic<T, R> real) {
-            this.real = real;
-        }
+    Step toStep(Executor defaultExecutor) {
+        return new Step(kind, logic, primitive, key, onFailure,
+                executor == null ? defaultExecutor : executor, timeoutNanos, name);
+    }
 
-        @Override
-        public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
-            this.next = next;
-            this.data = data;
-            real.run(data, this, context);
-        }
+    @Override
+    public AsyncPromise<T, R> onFailure(FailureHandler failure) {
+        editable(true);
+        setFailureHandler(failure);
+        changed(true);
+        return this;
+    }
 
-        @Override
-        public void trigger(R obj, Throwable thrown) {
-            if (thrown != null) {
-                failed(thrown, key(), data);
-                return;
-            }
-            next.trigger(obj, thrown);
-            this.next = null;
-            this.data = null;
-        }
+    void setFailureHandler(FailureHandler failure) {
+        this.onFailure = failure;
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-step latency, throughput, in-flight and failure metrics, for steps
+ * given a name with <code>AsyncPromise.named()</code>.  Steps with the same
+ * name share metrics, wherever they appear.
+ * <p>
+ * Metrics are off unless the system property
+ * <code>asyncpromises.metrics</code> is set to true when this class is
+ * first loaded.  The switch is a static final field, so when metrics are
+ * off the JIT removes the code which records them altogether.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class PromiseMetrics {
+
+    static final boolean ENABLED = Boolean.getBoolean("asyncpromises.metrics");
+    private static final ConcurrentMap<String, StepMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private PromiseMetrics() {
+        throw new AssertionError();
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Pass a snapshot of the metrics for each step name to a listener.
+     *
+     * @param listener The listener
+     */
+    public static void export(MetricsListener listener) {
+        for (StepMetrics metrics : METRICS.values()) {
+            listener.onStep(metrics.snapshot());
+        }
+    }
+
+    /**
+     * Get a snapshot of the metrics for one step name.
+     *
+     * @param name The name
+     * @return A snapshot, or null if no step with that name has been run
+     * with metrics enabled
+     */
+    public static StepStats stats(String name) {
+        StepMetrics metrics = METRICS.get(name);
+        return metrics == null ? null : metrics.snapshot();
+    }
+
+    static StepMetrics forName(String name) {
+        StepMetrics result = METRICS.get(name);
+        if (result == null) {
+            StepMetrics created = new StepMetrics(name);
+            result = METRICS.putIfAbsent(name, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * Receives the transitions of every run of every promise, once installed
+ * with <code>PromiseTracing.install()</code> - for building per-request
+ * traces of which steps ran, where and when.  Each run has a trace id,
+ * which logic can read from its PromiseContext to pass on downstream;  a
+ * branch run by <code>all()</code>, <code>any()</code> and similar has its
+ * own id, and records the id of the run it belongs to as its parent.
+ * <p>
+ * Methods are called synchronously on the thread making the transition -
+ * the thread a step is entered on is the one which runs it - so they must
+ * be fast, and should not allocate if tracing is to stay on in production.
+ * </p>
+ *
+ * @see RingBufferTracer
+ * @author Tim Boudreau
+ */
+public interface PromiseTracer {
+
+    /**
+     * A run has started.
+     *
+     * @param traceId The run's trace id
+     * @param parentTraceId The trace id of the run this is a branch of, or 0
+     */
+    public void runStarted(long traceId, long parentTraceId);
+
+    /**
+     * A step's logic is about to be called.
+     *
+     * @param traceId The run's trace id
+     * @param step The index of the step in the chain
+     * @param name The step's name, if it has one
+     */
+    public void stepEntered(long traceId, int step, String name);
+
+    /**
+     * A step has ended - its trigger has been called, its logic threw, it
+     * timed out, or the run was cancelled while it was in flight.
+     *
+     * @param traceId The run's trace id
+     * @param step The index of the step in the chain
+     * @param name The step's name, if it has one
+     * @param thrown The failure passed to the trigger, thrown by the logic,
+     * or the TimeoutException or CancellationException which ended it, if
+     * any
+     */
+    public void stepExited(long traceId, int step, String name, Throwable thrown);
+
+    /**
+     * A run has failed, and its failure handlers are about to be called.
+     *
+     * @param traceId The run's trace id
+     * @param step The index of the step which failed
+     * @param thrown The failure
+     */
+    public void runFailed(long traceId, int step, Throwable thrown);
+
+    /**
+     * A run has completed, and its result is about to be passed on.
+     *
+     * @param traceId The run's trace id
+     */
+    public void runFinished(long traceId);
+}
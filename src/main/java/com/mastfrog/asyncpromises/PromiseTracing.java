@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Installs the PromiseTracer which runs report to.  Each run looks up the
+ * tracer once, when it starts, so installing or removing one affects runs
+ * started afterwards;  with none installed, tracing costs a null check per
+ * transition.
+ *
+ * @author Tim Boudreau
+ */
+public final class PromiseTracing {
+
+    private static volatile PromiseTracer tracer;
+    private static final AtomicLong TRACE_IDS = new AtomicLong();
+
+    private PromiseTracing() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Install a tracer, replacing any existing one.
+     *
+     * @param tracer A tracer, or null to turn tracing off
+     */
+    public static void install(PromiseTracer tracer) {
+        PromiseTracing.tracer = tracer;
+    }
+
+    public static PromiseTracer current() {
+        return tracer;
+    }
+
+    static long nextTraceId() {
+        return TRACE_IDS.incrementAndGet();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logic which runs a promise as a branch, and if it fails with a failure its
+ * RetryPolicy says is worth retrying, runs it again after a delay.  Delays
+ * are kept by the shared timer, so no thread waits them out;  when one
+ * expires, the next attempt is started on the executor used for blocking
+ * logic, not the timer thread.
+ * <p>
+ * Each attempt gets its own copy of the context, so whatever a failed
+ * attempt put there is discarded, and whatever the attempt which succeeds
+ * put there is kept for the steps after it.  No retry is made if the run
+ * has been cancelled, or if its deadline would pass before the retry
+ * started, and cancelling the run while it waits for one stops the retry
+ * from being started.
+ * </p>
+ * <p>
+ * If the only attempt fails, its exception is passed on as it is.  If
+ * several did, an ExecutionException is, caused by the last one's, with
+ * those of the earlier attempts attached as suppressed exceptions - the
+ * failures themselves are left untouched, since logic may throw the same
+ * exception from more than one run.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class RetryLogic<T, R> implements Logic<T, R> {
+
+    private final AsyncPromise<T, R> promise;
+    private final RetryPolicy policy;
+
+    RetryLogic(AsyncPromise<T, R> promise, RetryPolicy policy) {
+        this.promise = promise;
+        this.policy = policy;
+    }
+
+    @Override
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        new Attempts<>(promise, policy, data, next, context).attempt();
+    }
+
+    private static final class Attempts<T, R> implements Trigger<R>, Runnable {
+
+        private final AsyncPromise<T, R> promise;
+        private final RetryPolicy policy;
+        private final T data;
+        private final Trigger<R> next;
+        private final PromiseContext context;
+        private final List<Throwable> failures = new ArrayList<>(2);
+        private PromiseContext attemptContext;
+        private volatile HashedWheelTimer.Timeout backoff;
+        private boolean hooked;
+
+        Attempts(AsyncPromise<T, R> promise, RetryPolicy policy, T data, Trigger<R> next, PromiseContext context) {
+            this.promise = promise;
+            this.policy = policy;
+            this.data = data;
+            this.next = next;
+            this.context = context;
+        }
+
+        void attempt() {
+            attemptContext = context.copy();
+            promise.startBranch(data, attemptContext, this);
+        }
+
+        @Override
+        public void run() {
+            attempt();
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            if (thrown == null) {
+                context.adopt(attemptContext);
+                next.trigger(obj, null);
+                return;
+            }
+            failures.add(thrown);
+            int attempts = failures.size();
+            if (!policy.shouldRetry(attempts, thrown) || context.isCancelled()) {
+                next.trigger(null, failure());
+                return;
+            }
+            long delay = policy.delayNanos(attempts);
+            if (delay >= context.remaining(TimeUnit.NANOSECONDS)) {
+                next.trigger(null, failure());
+                return;
+            }
+            if (delay == 0) {
+                attempt();
+                return;
+            }
+            HashedWheelTimer.Timeout timeout = new HashedWheelTimer.Timeout() {
+                @Override
+                protected void expire() {
+                    VirtualThreads.executor().execute(Attempts.this);
+                }
+            };
+            backoff = timeout;
+            if (!hooked) {
+                hooked = true;
+                context.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        HashedWheelTimer.Timeout pending = backoff;
+                        if (pending != null) {
+                            pending.cancel();
+                        }
+                    }
+                });
+            }
+            Scheduler.schedule(timeout, delay);
+            // The run may have been cancelled before the hook could see
+            // this timeout
+            if (context.isCancelled()) {
+                timeout.cancel();
+            }
+        }
+
+        private Throwable failure() {
+            int count = failures.size();
+            Throwable last = failures.get(count - 1);
+            if (count == 1) {
+                return last;
+            }
+            ExecutionException result = new ExecutionException("Failed after "
+                    + count + " attempts", last);
+            for (int i = 0; i < count - 1; i++) {
+                Throwable earlier = failures.get(i);
+                if (earlier != last) {
+                    result.addSuppressed(earlier);
+                }
+            }
+            return result;
+        }
+    }
+}
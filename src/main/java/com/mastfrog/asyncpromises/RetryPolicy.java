@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Says how often, and how soon, a step which failed should be tried again.
+ * Delays between attempts grow exponentially from an initial delay up to a
+ * maximum, and each is randomly shortened by up to a fraction (the jitter),
+ * so that many runs which failed together do not all retry together.
+ * Policies are immutable;  each method returns a modified copy.
+ * <pre>
+ * RetryPolicy policy = RetryPolicy.maxAttempts(4)
+ *      .backoff(10, 1000, TimeUnit.MILLISECONDS)
+ *      .retryIf(isTransient);
+ * </pre>
+ *
+ * @author Tim Boudreau
+ */
+public final class RetryPolicy {
+
+    private static final Predicate<Throwable> ANY = new Predicate<Throwable>() {
+        @Override
+        public boolean test(Throwable t) {
+            return true;
+        }
+    };
+    private final int maxAttempts;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double jitter;
+    private final Predicate<? super Throwable> retryIf;
+
+    private RetryPolicy(int maxAttempts, long initialDelayNanos, long maxDelayNanos, double jitter, Predicate<? super Throwable> retryIf) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.jitter = jitter;
+        this.retryIf = retryIf;
+    }
+
+    /**
+     * Create a policy which makes up to the passed number of attempts in
+     * all, for any exception, with a delay growing from 10 milliseconds to
+     * one second and half of it jittered.
+     *
+     * @param maxAttempts The number of attempts, including the first
+     * @return A policy
+     */
+    public static RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Attempts must be at least 1: " + maxAttempts);
+        }
+        return new RetryPolicy(maxAttempts, TimeUnit.MILLISECONDS.toNanos(10),
+                TimeUnit.SECONDS.toNanos(1), 0.5, ANY);
+    }
+
+    /**
+     * Set the delay before the first retry, which doubles for each one
+     * after it up to the passed maximum.
+     *
+     * @param initialDelay The first delay
+     * @param maxDelay The longest delay
+     * @param unit The unit of both
+     * @return A new policy
+     */
+    public RetryPolicy backoff(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Bad delays " + initialDelay + ", " + maxDelay);
+        }
+        return new RetryPolicy(maxAttempts, unit.toNanos(initialDelay), unit.toNanos(maxDelay), jitter, retryIf);
+    }
+
+    /**
+     * Set the fraction of each delay which is random:  0 for none, 1 for a
+     * delay anywhere between zero and the full delay.
+     *
+     * @param jitter A number from 0 to 1
+     * @return A new policy
+     */
+    public RetryPolicy jitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be from 0 to 1: " + jitter);
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, jitter, retryIf);
+    }
+
+    /**
+     * Only retry failures matching the passed test;  any other is passed on
+     * immediately.
+     *
+     * @param retryIf A test of whether a failure is worth retrying
+     * @return A new policy
+     */
+    public RetryPolicy retryIf(Predicate<? super Throwable> retryIf) {
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, jitter, retryIf);
+    }
+
+    boolean shouldRetry(int attemptsMade, Throwable thrown) {
+        return attemptsMade < maxAttempts && retryIf.test(thrown);
+    }
+
+    /**
+     * The delay before the next attempt, after the passed number have been
+     * made.
+     */
+    long delayNanos(int attemptsMade) {
+        long delay = initialDelayNanos;
+        for (int i = 1; i < attemptsMade && delay < maxDelayNanos; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayNanos);
+        if (jitter > 0 && delay > 0) {
+            long random = (long) (delay * jitter);
+            delay -= ThreadLocalRandom.current().nextLong(random + 1);
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A PromiseTracer which records the most recent events in a fixed-size
+ * ring buffer, allocated up front, so recording an event allocates nothing
+ * and tracing can stay on in production.  Threads are recorded by id,
+ * since getting a thread's name may copy it.  Old events are overwritten by new
+ * ones;  read the recent ones with <code>events()</code>.
+ * <p>
+ * Each writer claims a slot with an atomic increment of a cursor, then
+ * fills in the slot's fields and finally its sequence number.  A reader
+ * checks the sequence before and after reading the fields, and skips any
+ * slot which was being overwritten while it read.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class RingBufferTracer implements PromiseTracer {
+
+    private static final int LONGS = 6;
+    private static final int REFS = 2;
+    private static final TraceEvent.Kind[] KINDS = TraceEvent.Kind.values();
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    // Per slot:  sequence, trace id, time, step or parent id, kind, thread
+    private final AtomicLongArray longs;
+    // Per slot:  step name, failure
+    private final AtomicReferenceArray<Object> refs;
+
+    /**
+     * Create a tracer.
+     *
+     * @param capacity The number of events to keep, rounded up to a power
+     * of two
+     */
+    public RingBufferTracer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 26) {
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.longs = new AtomicLongArray(size * LONGS);
+        this.refs = new AtomicReferenceArray<>(size * REFS);
+    }
+
+    private void record(TraceEvent.Kind kind, long traceId, long detail, String name, Throwable thrown) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        int l = slot * LONGS;
+        int r = slot * REFS;
+        // Invalidate the slot while it is rewritten
+        longs.set(l, 0);
+        longs.lazySet(l + 1, traceId);
+        longs.lazySet(l + 2, System.nanoTime());
+        longs.lazySet(l + 3, detail);
+        longs.lazySet(l + 4, kind.ordinal());
+        longs.lazySet(l + 5, Thread.currentThread().getId());
+        refs.lazySet(r, name);
+        refs.lazySet(r + 1, thrown);
+        longs.lazySet(l, seq + 1);
+    }
+
+    @Override
+    public void runStarted(long traceId, long parentTraceId) {
+        record(TraceEvent.Kind.RUN_STARTED, traceId, parentTraceId, null, null);
+    }
+
+    @Override
+    public void stepEntered(long traceId, int step, String name) {
+        record(TraceEvent.Kind.STEP_ENTERED, traceId, step, name, null);
+    }
+
+    @Override
+    public void stepExited(long traceId, int step, String name, Throwable thrown) {
+        record(TraceEvent.Kind.STEP_EXITED, traceId, step, name, thrown);
+    }
+
+    @Override
+    public void runFailed(long traceId, int step, Throwable thrown) {
+        record(TraceEvent.Kind.RUN_FAILED, traceId, step, null, thrown);
+    }
+
+    @Override
+    public void runFinished(long traceId) {
+        record(TraceEvent.Kind.RUN_FINISHED, traceId, 0, null, null);
+    }
+
+    /**
+     * Get the events still in the buffer, oldest first.
+     *
+     * @return A list of events
+     */
+    public List<TraceEvent> events() {
+        return events(0);
+    }
+
+    /**
+     * Get the events still in the buffer for one run, oldest first.
+     *
+     * @param traceId The run's trace id, or 0 for all runs
+     * @return A list of events
+     */
+    public List<TraceEvent> events(long traceId) {
+        long end = cursor.get();
+        long start = Math.max(0, end - (mask + 1));
+        List<TraceEvent> result = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            int l = slot * LONGS;
+            int r = slot * REFS;
+            if (longs.get(l) != seq + 1) {
+                continue;
+            }
+            long id = longs.get(l + 1);
+            long time = longs.get(l + 2);
+            long detail = longs.get(l + 3);
+            int kind = (int) longs.get(l + 4);
+            long thread = longs.get(l + 5);
+            Object name = refs.get(r);
+            Object thrown = refs.get(r + 1);
+            if (longs.get(l) != seq + 1) {
+                // Overwritten while we read it
+                continue;
+            }
+            if (traceId == 0 || id == traceId) {
+                result.add(new TraceEvent(KINDS[kind], id, time, detail,
+                        (String) name, thread, (Throwable) thrown));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the single timer used for delayed work - step timeouts, deadlines
+ * and batch windows - whose thread is only started the first time something
+ * is scheduled.  Anything scheduled here runs on the timer thread, so it
+ * should be brief, and hand off anything which might not be.
+ *
+ * @author Tim Boudreau
+ */
+final class Scheduler {
+
+    private Scheduler() {
+        throw new AssertionError();
+    }
+
+    static void schedule(HashedWheelTimer.Timeout timeout, long delayNanos) {
+        Holder.TIMER.schedule(timeout, delayNanos);
+    }
+
+    private static final class Holder {
+
+        // A millisecond tick over 512 buckets - a timeout is never more than
+        // about a millisecond late, and anything due within half a second
+        // sits in the first turn of the wheel
+        private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+                "async-promises-timer", TimeUnit.MILLISECONDS.toNanos(1), 512);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Logic which calls a function returning a CompletionStage, and passes on
+ * its outcome from whichever thread completes it - no executor hop.  If the
+ * stage is already complete, the outcome is passed on synchronously without
+ * registering anything on it.
+ *
+ * @author Tim Boudreau
+ */
+final class StageLogic<T, R> implements Logic<T, R> {
+
+    private final Function<? super T, ? extends CompletionStage<R>> function;
+
+    StageLogic(Function<? super T, ? extends CompletionStage<R>> function) {
+        if (function == null) {
+            throw new IllegalArgumentException("Null function");
+        }
+        this.function = function;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run(T data, Trigger<R> next, PromiseContext context) throws Exception {
+        CompletionStage<R> stage = function.apply(data);
+        if (stage == null) {
+            throw new NullPointerException(function + " returned null");
+        }
+        if (stage instanceof CompletableFuture<?> && ((CompletableFuture<?>) stage).isDone()) {
+            R result;
+            try {
+                result = ((CompletableFuture<R>) stage).join();
+            } catch (CompletionException | CancellationException ex) {
+                next.trigger(null, unwrap(ex));
+                return;
+            }
+            next.trigger(result, null);
+            return;
+        }
+        Completion<R> completion = new Completion<>(stage, next);
+        if (stage instanceof Future<?>) {
+            context.onCancel(completion);
+        }
+        stage.whenComplete(completion);
+    }
+
+    /**
+     * Stages wrap the failure of a stage they depend on in a
+     * CompletionException;  failure handlers want the original.
+     */
+    static Throwable unwrap(Throwable thrown) {
+        if (thrown instanceof CompletionException && thrown.getCause() != null) {
+            return thrown.getCause();
+        }
+        return thrown;
+    }
+
+    private static final class Completion<R> implements BiConsumer<R, Throwable>, Runnable {
+
+        private final CompletionStage<R> stage;
+        private final Trigger<R> next;
+
+        Completion(CompletionStage<R> stage, Trigger<R> next) {
+            this.stage = stage;
+            this.next = next;
+        }
+
+        @Override
+        public void accept(R result, Throwable thrown) {
+            next.trigger(result, thrown == null ? null : unwrap(thrown));
+        }
+
+        @Override
+        public void run() {
+            // The run was cancelled - stop the work if it can be stopped
+            ((Future<?>) stage).cancel(false);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A CompletableFuture which is itself the trigger a run completes, so
+ * bridging a run to a CompletionStage costs one object and no thread hop.
+ * Cancelling it cancels the run.
+ *
+ * @author Tim Boudreau
+ */
+final class StageTrigger<R> extends CompletableFuture<R> implements Trigger<R> {
+
+    private volatile Cancellable run;
+
+    void attach(Cancellable run) {
+        this.run = run;
+    }
+
+    @Override
+    public void trigger(R obj, Throwable thrown) {
+        if (thrown != null) {
+            completeExceptionally(thrown);
+        } else {
+            complete(obj);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean result = super.cancel(mayInterruptIfRunning);
+        Cancellable r = run;
+        if (result && r != null) {
+            r.cancel();
+        }
+        return result;
+    }
+}
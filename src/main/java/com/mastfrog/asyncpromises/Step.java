@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.concurrent.Executor;
+
+/**
+ * One step of a compiled chain - a snapshot of the logic, key, failure
+ * handler and executor of a PromiseImpl at the time the chain was compiled.
+ * <p>
+ * The kind of a step says what sort of logic it runs - ordinary Logic, or
+ * one of the primitive specializations, in which case <code>logic</code> is
+ * null and <code>primitive</code> holds an IntLogic, LongLogic or
+ * DoubleLogic.  The same constants describe the kind of value an Execution
+ * is holding between steps.  A step may also be of kind BLOCKING, in which
+ * case <code>primitive</code> holds a BlockingLogic whose result the
+ * Execution passes on itself, so the step needs no trigger at all.
+ * </p>
+ * <p>
+ * A step with a timeout fails if its logic has not called its trigger within
+ * that many nanoseconds of being started.
+ * </p>
+ * <p>
+ * A named step, when metrics are enabled, carries the metrics it records
+ * into, looked up once here rather than on every run.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class Step {
+
+    static final int OBJECT = 0;
+    static final int INT = 1;
+    static final int LONG = 2;
+    static final int DOUBLE = 3;
+    // Only ever the kind of a step, never of a value
+    static final int BLOCKING = 4;
+    final int kind;
+    final Logic<Object, Object> logic;
+    final Object primitive;
+    final Key<Object> key;
+    final FailureHandler onFailure;
+    final Executor executor;
+    final long timeoutNanos;
+    final String name;
+    final StepMetrics metrics;
+
+    @SuppressWarnings("unchecked")
+    Step(int kind, Logic<?, ?> logic, Object primitive, Key<?> key, FailureHandler onFailure, Executor executor, long timeoutNanos, String name) {
+        this.kind = kind;
+        this.logic = (Logic<Object, Object>) logic;
+        this.primitive = primitive;
+        this.key = (Key<Object>) key;
+        this.onFailure = onFailure;
+        this.executor = executor;
+        this.timeoutNanos = timeoutNanos;
+        this.name = name;
+        this.metrics = name != null && PromiseMetrics.ENABLED ? PromiseMetrics.forName(name) : null;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live counters for every step with a given name.  Counts are striped
+ * LongAdders, so steps run on many threads at once do not contend on them.
+ *
+ * @author Tim Boudreau
+ */
+final class StepMetrics {
+
+    private final String name;
+    private final LongAdder started = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    StepMetrics(String name) {
+        this.name = name;
+    }
+
+    void started() {
+        started.increment();
+    }
+
+    void completed(long nanos, boolean failure) {
+        if (failure) {
+            failed.increment();
+        } else {
+            succeeded.increment();
+        }
+        totalNanos.add(nanos);
+        latencies.record(nanos);
+    }
+
+    StepStats snapshot() {
+        // Read completions before starts, so a step completing while this
+        // runs cannot make the in-flight count negative
+        long ok = succeeded.sum();
+        long bad = failed.sum();
+        long nanos = totalNanos.sum();
+        long[] histogram = latencies.snapshot();
+        return new StepStats(name, started.sum(), ok, bad, nanos, histogram);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * A snapshot of the metrics for every step with a given name.  Counts are
+ * totals since the JVM started;  to get throughput, compare the counts in
+ * snapshots taken some time apart.
+ *
+ * @author Tim Boudreau
+ */
+public final class StepStats {
+
+    private final String name;
+    private final long started;
+    private final long succeeded;
+    private final long failed;
+    private final long totalNanos;
+    private final long[] histogram;
+
+    StepStats(String name, long started, long succeeded, long failed, long totalNanos, long[] histogram) {
+        this.name = name;
+        this.started = started;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.totalNanos = totalNanos;
+        this.histogram = histogram;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long started() {
+        return started;
+    }
+
+    public long succeeded() {
+        return succeeded;
+    }
+
+    public long failed() {
+        return failed;
+    }
+
+    /**
+     * The number of steps started but not yet completed when the snapshot
+     * was taken.
+     *
+     * @return A count
+     */
+    public long inFlight() {
+        return Math.max(0, started - succeeded - failed);
+    }
+
+    public long meanLatencyNanos() {
+        long completed = succeeded + failed;
+        return completed == 0 ? 0 : totalNanos / completed;
+    }
+
+    /**
+     * Get the latency below which the passed percentage of completed steps
+     * fell, to within 12.5%.
+     *
+     * @param percentile A percentile, such as 99.9
+     * @return A latency in nanoseconds, or 0 if nothing has completed
+     */
+    public long latencyNanos(double percentile) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target) {
+                return LatencyHistogram.highestValueAt(i);
+            }
+        }
+        return LatencyHistogram.highestValueAt(histogram.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": started " + started + ", succeeded " + succeeded
+                + ", failed " + failed + ", in flight " + inFlight()
+                + ", mean " + meanLatencyNanos() + "ns, p50 " + latencyNanos(50)
+                + "ns, p99 " + latencyNanos(99) + "ns";
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Pushes a stream of inputs through a chain, with up to a fixed number of
+ * runs in flight at once, so that different inputs can be at different
+ * steps of the chain at the same time.  The next input is only pulled from
+ * the iterator when a run completes and frees up room for it, so a slow
+ * chain holds back a fast source rather than queueing its inputs.
+ * <p>
+ * Completed runs queue themselves up and call <code>drain()</code>.  As in
+ * Execution, only one thread at a time runs the drain loop, and a thread
+ * which arrives while another is in it just bumps the work count so that
+ * the loop goes round again - so the iterator is only touched by one thread
+ * at a time, results are delivered one at a time, and a chain which
+ * completes synchronously does not recurse as it pulls the next input.
+ * </p>
+ * <p>
+ * In ordered mode, a result which completes ahead of earlier inputs is
+ * held in a ring buffer until they have been delivered;  it counts as in
+ * flight until then, so at most <code>maxInFlight</code> are ever held.
+ * </p>
+ * <p>
+ * Whether ordered or not, a result may be delivered after the run which
+ * produced it has finished - by the thread already in the drain loop - so
+ * each run is retained when it completes, and whatever it registered with
+ * its context, such as buffers from <code>PromiseContext.buffer()</code>,
+ * is only released once its result has been passed to
+ * <code>onEach</code>.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class StreamRun<T, R> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<StreamRun> WIP
+            = AtomicIntegerFieldUpdater.newUpdater(StreamRun.class, "wip");
+
+    private final AsyncPromise<T, R> promise;
+    private final Iterator<? extends T> inputs;
+    private final int maxInFlight;
+    private final Trigger<? super R> onEach;
+    private final Trigger<Long> onDone;
+    private final ConcurrentLinkedQueue<Item> completed = new ConcurrentLinkedQueue<>();
+    // Set as soon as any run fails, so pulling stops before the failure
+    // has made its way through the queue
+    private volatile boolean failing;
+    private volatile int wip;
+    // Only touched by the thread in the drain loop
+    private final Item[] pending;
+    private long nextSeq;
+    private long nextToDeliver;
+    private int inFlight;
+    private long delivered;
+    private boolean exhausted;
+    private boolean done;
+    private Throwable failure;
+
+    StreamRun(AsyncPromise<T, R> promise, Iterator<? extends T> inputs, int maxInFlight, boolean ordered, Trigger<? super R> onEach, Trigger<Long> onDone) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("In-flight limit must be at least 1: " + maxInFlight);
+        }
+        this.promise = promise;
+        this.inputs = inputs;
+        this.maxInFlight = maxInFlight;
+        this.onEach = onEach;
+        this.onDone = onDone;
+        this.pending = ordered ? newItems(maxInFlight) : null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Item[] newItems(int count) {
+        // Item is an inner class of a generic type, so there is no way to
+        // create an array of it without an unchecked conversion
+        return new StreamRun.Item[count];
+    }
+
+    void drain() {
+        if (WIP.getAndIncrement(this) != 0) {
+            return;
+        }
+        do {
+            Item item;
+            while ((item = completed.poll()) != null) {
+                if (pending == null) {
+                    deliver(item);
+                } else {
+                    pending[(int) (item.seq % maxInFlight)] = item;
+                }
+            }
+            if (pending != null) {
+                int slot;
+                while ((item = pending[slot = (int) (nextToDeliver % maxInFlight)]) != null
+                        && item.seq == nextToDeliver) {
+                    pending[slot] = null;
+                    nextToDeliver++;
+                    deliver(item);
+                }
+            }
+            pull();
+            if (!done && inFlight == 0 && (exhausted || failure != null)) {
+                done = true;
+                if (failure != null) {
+                    onDone.trigger(null, failure);
+                } else {
+                    onDone.trigger(delivered, null);
+                }
+            }
+        } while (WIP.decrementAndGet(this) != 0);
+    }
+
+    private void pull() {
+        while (failure == null && !failing && !exhausted && inFlight < maxInFlight) {
+            T input;
+            try {
+                if (!inputs.hasNext()) {
+                    exhausted = true;
+                    return;
+                }
+                input = inputs.next();
+            } catch (RuntimeException ex) {
+                failure = ex;
+                return;
+            }
+            inFlight++;
+            // If this completes synchronously, its drain() call only bumps
+            // the count, and the loop picks it up next time round
+            PromiseContext context = new PromiseContext();
+            promise.startBranch(input, context, new Item(nextSeq++, context));
+        }
+    }
+
+    private void deliver(Item item) {
+        inFlight--;
+        try {
+            if (item.thrown != null) {
+                if (failure == null) {
+                    failure = item.thrown;
+                }
+                return;
+            }
+            onEach.trigger(item.result, null);
+            delivered++;
+        } catch (RuntimeException ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+        } finally {
+            item.release();
+        }
+    }
+
+    private final class Item implements Trigger<R> {
+
+        private final long seq;
+        private final PromiseContext context;
+        private Execution retained;
+        private R result;
+        private Throwable thrown;
+
+        Item(long seq, PromiseContext context) {
+            this.seq = seq;
+            this.context = context;
+        }
+
+        void release() {
+            if (retained != null) {
+                retained.ended();
+                retained = null;
+            }
+            result = null;
+        }
+
+        @Override
+        public void trigger(R obj, Throwable thrown) {
+            // The run ends when this returns - keep what it registered
+            // until the result has been delivered
+            retained = context.execution;
+            if (retained != null) {
+                retained.retain();
+            }
+            // Published to the draining thread by the queue
+            this.result = obj;
+            this.thrown = thrown;
+            if (thrown != null) {
+                failing = true;
+            }
+            completed.offer(this);
+            drain();
+        }
+    }
+}
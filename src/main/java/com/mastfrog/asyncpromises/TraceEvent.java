@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+/**
+ * One transition recorded by a RingBufferTracer.
+ *
+ * @author Tim Boudreau
+ */
+public final class TraceEvent {
+
+    public enum Kind {
+        RUN_STARTED,
+        STEP_ENTERED,
+        STEP_EXITED,
+        RUN_FAILED,
+        RUN_FINISHED
+    }
+
+    private final Kind kind;
+    private final long traceId;
+    private final long timeNanos;
+    private final long detail;
+    private final String stepName;
+    private final long threadId;
+    private final Throwable thrown;
+
+    TraceEvent(Kind kind, long traceId, long timeNanos, long detail, String stepName, long threadId, Throwable thrown) {
+        this.kind = kind;
+        this.traceId = traceId;
+        this.timeNanos = timeNanos;
+        this.detail = detail;
+        this.stepName = stepName;
+        this.threadId = threadId;
+        this.thrown = thrown;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public long traceId() {
+        return traceId;
+    }
+
+    /**
+     * The time of the event, as System.nanoTime().
+     *
+     * @return A time
+     */
+    public long timeNanos() {
+        return timeNanos;
+    }
+
+    /**
+     * The index of the step, or -1 for events which concern the whole run.
+     *
+     * @return A step index
+     */
+    public int step() {
+        return kind == Kind.RUN_STARTED || kind == Kind.RUN_FINISHED ? -1 : (int) detail;
+    }
+
+    /**
+     * The trace id of the run this one is a branch of, for RUN_STARTED
+     * events, or 0.
+     *
+     * @return A trace id
+     */
+    public long parentTraceId() {
+        return kind == Kind.RUN_STARTED ? detail : 0;
+    }
+
+    public String stepName() {
+        return stepName;
+    }
+
+    /**
+     * The id of the thread the event happened on, as Thread.getId().
+     *
+     * @return A thread id
+     */
+    public long threadId() {
+        return threadId;
+    }
+
+    public Throwable thrown() {
+        return thrown;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(traceId).append(' ')
+                .append(kind).append(' ');
+        if (step() >= 0) {
+            sb.append(step()).append(' ');
+        }
+        if (stepName != null) {
+            sb.append(stepName).append(' ');
+        }
+        if (parentTraceId() != 0) {
+            sb.append("parent ").append(parentTraceId()).append(' ');
+        }
+        sb.append("on thread ").append(threadId);
+        if (thrown != null) {
+            sb.append(' ').append(thrown);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the executor used for BlockingLogic by default.  On JVMs which have
+ * virtual threads, that is one which starts a new virtual thread for each
+ * task, so any number of chains can be blocked at once without sizing a
+ * thread pool;  elsewhere it falls back to a cached pool of daemon threads.
+ *
+ * @author Tim Boudreau
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+        throw new AssertionError();
+    }
+
+    static Executor executor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder {
+
+        private static final Executor EXECUTOR;
+
+        static {
+            ExecutorService virtual = null;
+            try {
+                // Looked up reflectively, since we are compiled for a JDK
+                // which predates virtual threads
+                virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception | LinkageError ex) {
+                // Older JDK, or virtual threads are a preview feature
+                // which is not enabled
+            }
+            EXECUTOR = virtual != null ? virtual
+                    : Executors.newCachedThreadPool(new DaemonThreadFactory());
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "async-promises-blocking-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -27,7 +27,10 @@ import com.mastfrog.asyncpromises.PromiseContext.Key;
 
 /**
  * Combines two promises into one that spans the input type of the first and the
- * output type of the second.
+ * output type of the second.  Wrappers are only used while assembling a chain;
+ * when started, the tree of them is compiled into a flat Chain.  Either
+ * promise may be wrapped again, in any number of other chains, so each is
+ * marked as owned, which fixes its definition from then on.
  *
  * @author Tim Boudreau
  */
@@ -39,62 +42,55 @@ class WrapperPromise<T, R, S> extends AsyncPromise<T, S> {
     public WrapperPromise(AsyncPromise<T, R> first, AsyncPromise<R, S> second) {
         this.first = first;
         this.second = second;
-        second.setParent(first);
+        first.owned();
+        second.owned();
+        this.defaultExecutor = first.defaultExecutor;
+        this.deadlineNanos = first.deadlineNanos;
     }
 
-    Key<T> key() {
-        return first.key();
+    AsyncPromise<T, R> first() {
+        return first;
     }
 
-    @Override
-    public AsyncPromise<T, S> start(final T input, final Trigger<S> trigger) {
-        first.start(input, new Trigger<R>() {
-            @Override
-            public void trigger(R obj, Throwable thrown) {
-                if (thrown != null) {
-                    first.failed(thrown, first.key(), input);
-                } else {
-                    second.start(obj, trigger);
-                }
-            }
-        });
-        return this;
+    AsyncPromise<R, S> second() {
+        return second;
     }
 
-    @Override
-    public AsyncPromise<T, S> onFailure(FailureHandler failure) {
-        first.onFailure(failure);
-        return this;
+    /**
+     * Find the promise which runs first, without recursing down what may be a
+     * very deep left-leaning tree.
+     */
+    @SuppressWarnings("unchecked")
+    private PromiseImpl<T, ?> head() {
+        AsyncPromise<T, ?> result = first;
+        while (result instanceof WrapperPromise<?, ?, ?>) {
+            result = ((WrapperPromise<T, ?, ?>) result).first;
+        }
+        return (PromiseImpl<T, ?>) result;
     }
 
     @Override
-    public <U> AsyncPromise<T, U> then(AsyncPromise<S, U> logic) {
-        return new WrapperPromise<>(this, logic);
+    Key<T> key() {
+        return head().key();
     }
 
     @Override
-    void setParent(AsyncPromise<?, T> parent) {
-        first.setParent(parent);
+    public AsyncPromise<T, S> onFailure(FailureHandler failure) {
+        editable(true).setFailureHandler(failure);
+        changed(true);
+        return this;
     }
 
     @Override
-    PromiseContext context() {
-        return second.context();
+    public <U> AsyncPromise<T, U> then(AsyncPromise<S, U> logic) {
+        return new WrapperPromise<>(this, logic);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public AsyncPromise<T, S> usingKey(PromiseContext.Key<T> key) {
-        first.usingKey(key);
+        ((PromiseImpl<T, ?>) editable(true)).setKey(key);
+        changed(true);
         return this;
     }
-
-    @Override
-    boolean hasFailureHandler() {
-        return second.hasFailureHandler() || first.hasFailureHandler();
-    }
-
-    @Override
-    <R> void failed(Throwable thrown, Key<R> key, R input) {
-        second.failed(thrown, key, input);
-    }
 }
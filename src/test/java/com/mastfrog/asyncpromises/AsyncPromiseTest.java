@@ -24,6 +24,18 @@
 package com.mastfrog.asyncpromises;
 
 import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -79,6 +91,263 @@ public class AsyncPromiseTest {
         assertFalse(called[0]);
     }
 
+    @Test
+    public void testConcurrentStarts() throws Throwable {
+        final Key<String> inputKey = PromiseContext.newKey(String.class);
+        final ExecutorService threadPool = Executors.newFixedThreadPool(8);
+        final AsyncPromise<String, String> p = AsyncPromise.create(new Logic<String, String>() {
+            @Override
+            public void run(final String data, final Trigger<String> next, PromiseContext context) throws Exception {
+                // Complete on another thread so runs genuinely overlap
+                threadPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.trigger(data + "-1", null);
+                    }
+                });
+            }
+        }).usingKey(inputKey).then(new Logic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                next.trigger(context.get(inputKey) + ":" + data, null);
+            }
+        });
+        int count = 200;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger mismatches = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Runnable> starts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String in = "r" + i;
+            starts.add(new Runnable() {
+                @Override
+                public void run() {
+                    p.start(in, new Trigger<String>() {
+                        @Override
+                        public void trigger(String obj, Throwable thrown) {
+                            if (thrown != null) {
+                                failure.set(thrown);
+                            } else if (!(in + ":" + in + "-1").equals(obj)) {
+                                mismatches.incrementAndGet();
+                            }
+                            latch.countDown();
+                        }
+                    });
+                }
+            });
+        }
+        for (Runnable r : starts) {
+            threadPool.submit(r);
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        threadPool.shutdown();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void testDeepSynchronousChainDoesNotOverflow() {
+        SimpleLogic<Integer, Integer> increment = new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        };
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(increment);
+        int depth = 50000;
+        for (int i = 1; i < depth; i++) {
+            p = p.then(increment);
+        }
+        final int[] result = new int[1];
+        p.start(0, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                assertNull(thrown);
+                result[0] = obj;
+            }
+        });
+        assertEquals(depth, result[0]);
+    }
+
+    @Test
+    public void testFailureInDeepChainReachesHandlers() {
+        SimpleLogic<String, String> pass = new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data, null);
+            }
+        };
+        final List<String> notified = new ArrayList<>();
+        AsyncPromise<String, String> p = AsyncPromise.create(pass).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                notified.add("first");
+                return true;
+            }
+        });
+        for (int i = 0; i < 20000; i++) {
+            p = p.then(pass);
+        }
+        AsyncPromise<String, String> tail = AsyncPromise.create(pass).then(new Failer());
+        tail.onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                notified.add("tail");
+                assertTrue(thrown instanceof IllegalArgumentException);
+                return true;
+            }
+        });
+        p = p.then(tail);
+        p.start("x");
+        assertEquals(Arrays.asList("tail", "first"), notified);
+    }
+
+    @Test
+    public void testExecutorHops() throws Throwable {
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final AtomicInteger submissions = new AtomicInteger();
+        Executor counting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submissions.incrementAndGet();
+                pool.execute(command);
+            }
+        };
+        final Thread poolThread = pool.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        }).get();
+        final Thread caller = Thread.currentThread();
+        final List<String> problems = new CopyOnWriteArrayList<>();
+        SimpleLogic<Integer, Integer> onPool = new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                if (Thread.currentThread() != poolThread) {
+                    problems.add("Step " + data + " not on pool thread");
+                }
+                next.trigger(data + 1, null);
+            }
+        };
+        SimpleLogic<Integer, Integer> onCaller = new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                if (Thread.currentThread() != caller) {
+                    problems.add("Step " + data + " not on calling thread");
+                }
+                next.trigger(data + 1, null);
+            }
+        };
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger();
+        // Two consecutive steps on the same executor should cost one hop,
+        // and the inline step after them should stay on the pool thread
+        AsyncPromise.create(onCaller).thenAsync(counting, onPool)
+                .thenAsync(counting, onPool).then(onPool)
+                .start(0, new Trigger<Integer>() {
+                    @Override
+                    public void trigger(Integer obj, Throwable thrown) {
+                        result.set(obj);
+                        latch.countDown();
+                    }
+                });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(4, result.get());
+        assertEquals(1, submissions.get());
+
+        // A default executor applies to every step, and startAsync hops
+        // before the first one
+        final CountDownLatch latch2 = new CountDownLatch(1);
+        AsyncPromise.create(onPool).then(onPool).usingExecutor(counting).then(onPool)
+                .startAsync(counting, 0, new Trigger<Integer>() {
+                    @Override
+                    public void trigger(Integer obj, Throwable thrown) {
+                        result.set(obj);
+                        latch2.countDown();
+                    }
+                });
+        assertTrue(latch2.await(10, TimeUnit.SECONDS));
+        assertEquals(3, result.get());
+        assertEquals(2, submissions.get());
+        pool.shutdown();
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    @Test
+    public void testBlockingLogic() throws Throwable {
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        AsyncPromise.create(new StringLogic("a")).thenBlocking(new BlockingLogic<String, Integer>() {
+            @Override
+            public Integer run(String data) throws Exception {
+                assertNotSame(caller, Thread.currentThread());
+                Thread.sleep(5);
+                return data.length();
+            }
+        }).start("x", new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                result.set(thrown == null ? obj : thrown);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(2, result.get());
+    }
+
+    @Test
+    public void testBlockingLogicFailurePropagation() throws Throwable {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> handlers = new CopyOnWriteArrayList<>();
+        final AtomicReference<Object> failedInput = new AtomicReference<>();
+        final AtomicInteger laterSteps = new AtomicInteger();
+        AsyncPromise<String, String> first = AsyncPromise.create(new StringLogic("a"));
+        first.onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                handlers.add("first");
+                latch.countDown();
+                return true;
+            }
+        });
+        AsyncPromise<String, String> blocking = AsyncPromise.createBlocking(new BlockingLogic<String, String>() {
+            @Override
+            public String run(String data) throws Exception {
+                throw new IllegalStateException("bad " + data);
+            }
+        }).usingKey(KEYF).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                handlers.add("blocking");
+                assertSame(KEYF, key);
+                failedInput.set(input);
+                assertTrue(thrown instanceof IllegalStateException);
+                latch.countDown();
+                return true;
+            }
+        });
+        first.then(blocking).then(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                laterSteps.incrementAndGet();
+                next.trigger(data, null);
+            }
+        }).start("x", new Trigger<String>() {
+            @Override
+            public void trigger(String obj, Throwable thrown) {
+                handlers.add("onDone");
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocking", "first"), handlers);
+        assertEquals("xa", failedInput.get());
+        assertEquals(0, laterSteps.get());
+    }
+
     static class Failer implements SimpleLogic<String, String> {
 
         @Override
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BatchTest {
+
+    @Test
+    public void testFullBatchesAreScatteredToTheirRuns() throws Exception {
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        AsyncPromise<Integer, String> p = AsyncPromise.createBatched(5, 1, TimeUnit.HOURS, new BatchLogic<Integer, String>() {
+            @Override
+            public void run(List<Integer> inputs, Trigger<List<String>> next) throws Exception {
+                sizes.add(inputs.size());
+                List<String> result = new ArrayList<>();
+                for (Integer i : inputs) {
+                    result.add("v" + i);
+                }
+                next.trigger(result, null);
+            }
+        });
+        final ConcurrentHashMap<Integer, String> results = new ConcurrentHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            final int input = i;
+            p.start(i, new Trigger<String>() {
+                @Override
+                public void trigger(String obj, Throwable thrown) {
+                    results.put(input, obj);
+                }
+            });
+        }
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("v" + i, results.get(i));
+        }
+        assertEquals(2, sizes.size());
+        assertEquals(Integer.valueOf(5), sizes.get(0));
+        assertEquals(Integer.valueOf(5), sizes.get(1));
+    }
+
+    @Test
+    public void testPartialBatchIsFlushedWhenWindowExpires() throws Exception {
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        AsyncPromise<String, Integer> p = AsyncPromise.create(new SimpleLogic<String, Integer>() {
+            @Override
+            public void run(String data, Trigger<Integer> next) throws Exception {
+                next.trigger(data.length(), null);
+            }
+        }).thenBatched(100, 20, TimeUnit.MILLISECONDS, new BatchLogic<Integer, Integer>() {
+            @Override
+            public void run(List<Integer> inputs, Trigger<List<Integer>> next) throws Exception {
+                sizes.add(inputs.size());
+                List<Integer> result = new ArrayList<>();
+                for (Integer i : inputs) {
+                    result.add(i * 10);
+                }
+                next.trigger(result, null);
+            }
+        });
+        final CountDownLatch latch = new CountDownLatch(3);
+        final ConcurrentHashMap<String, Integer> results = new ConcurrentHashMap<>();
+        for (final String s : new String[]{"a", "bb", "ccc"}) {
+            p.start(s, new Trigger<Integer>() {
+                @Override
+                public void trigger(Integer obj, Throwable thrown) {
+                    results.put(s, obj);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(3), sizes);
+        assertEquals(Integer.valueOf(10), results.get("a"));
+        assertEquals(Integer.valueOf(20), results.get("bb"));
+        assertEquals(Integer.valueOf(30), results.get("ccc"));
+    }
+
+    @Test
+    public void testFailureReachesEachRunsHandler() throws Exception {
+        final List<Integer> failedInputs = Collections.synchronizedList(new ArrayList<Integer>());
+        AsyncPromise<Integer, Integer> p = AsyncPromise.createBatched(3, 1, TimeUnit.HOURS, new BatchLogic<Integer, Integer>() {
+            @Override
+            public void run(List<Integer> inputs, Trigger<List<Integer>> next) throws Exception {
+                throw new IllegalStateException("Bulk lookup failed");
+            }
+        }).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                assertEquals("Bulk lookup failed", thrown.getMessage());
+                failedInputs.add((Integer) input);
+                return false;
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            p.start(i, new Trigger<Integer>() {
+                @Override
+                public void trigger(Integer obj, Throwable thrown) {
+                    throw new AssertionError("Should not be called");
+                }
+            });
+        }
+        Collections.sort(failedInputs);
+        assertEquals(Arrays.asList(0, 1, 2), failedInputs);
+    }
+}
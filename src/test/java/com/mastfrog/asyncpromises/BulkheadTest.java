@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BulkheadTest {
+
+    private final List<Trigger<Integer>> parked = Collections.synchronizedList(new ArrayList<Trigger<Integer>>());
+    private final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+    private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    private final Logic<Integer, Integer> backend = new Logic<Integer, Integer>() {
+        @Override
+        public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+            parked.add(next);
+        }
+    };
+
+    private final Trigger<Integer> collect = new Trigger<Integer>() {
+        @Override
+        public void trigger(Integer obj, Throwable thrown) {
+            results.add(obj);
+        }
+    };
+
+    private final FailureHandler recorder = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            failures.add(thrown);
+            return false;
+        }
+    };
+
+    @Test
+    public void testFailFast() {
+        Bulkhead bulkhead = Bulkhead.failFast(2);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.limited(bulkhead, backend).onFailure(recorder);
+        for (int i = 0; i < 3; i++) {
+            p.start(i, collect);
+        }
+        assertEquals(2, parked.size());
+        assertEquals(2, bulkhead.inFlight());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof RejectedExecutionException);
+        parked.get(0).trigger(10, null);
+        assertEquals(1, bulkhead.inFlight());
+        p.start(3, collect);
+        assertEquals(3, parked.size());
+        assertEquals(Collections.<Object>singletonList(10), results);
+    }
+
+    @Test
+    public void testQueueing() throws Exception {
+        Bulkhead bulkhead = Bulkhead.queueing(1, 2, 1, TimeUnit.HOURS);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        }).thenLimited(bulkhead, backend).onFailure(recorder);
+        for (int i = 0; i < 4; i++) {
+            p.start(i, collect);
+        }
+        assertEquals(1, parked.size());
+        assertEquals(2, bulkhead.queued());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof RejectedExecutionException);
+        // Completing the running one starts the next queued one, in order
+        parked.get(0).trigger(100, null);
+        assertEquals(2, parked.size());
+        assertEquals(1, bulkhead.queued());
+        parked.get(1).trigger(200, null);
+        parked.get(2).trigger(300, null);
+        assertEquals(3, parked.size());
+        assertEquals(0, bulkhead.inFlight());
+        assertEquals(0, bulkhead.queued());
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Bulkhead bulkhead = Bulkhead.queueing(1, 5, 20, TimeUnit.MILLISECONDS);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.limited(bulkhead, backend)
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        failures.add(thrown);
+                        latch.countDown();
+                        return false;
+                    }
+                });
+        p.start(1, collect);
+        p.start(2, collect);
+        assertEquals(1, bulkhead.queued());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(failures.get(0) instanceof TimeoutException);
+        assertEquals(0, bulkhead.queued());
+        // The timed out run is skipped when the slot frees up
+        parked.get(0).trigger(1, null);
+        assertEquals(1, parked.size());
+        assertEquals(0, bulkhead.inFlight());
+    }
+
+    @Test
+    public void testStuckBackendDoesNotAccumulateWaiters() throws Exception {
+        Bulkhead bulkhead = Bulkhead.queueing(1, 3, 5, TimeUnit.MILLISECONDS);
+        final AtomicInteger timedOut = new AtomicInteger();
+        AsyncPromise<Integer, Integer> p = AsyncPromise.limited(bulkhead, backend)
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        failures.add(thrown);
+                        synchronized (timedOut) {
+                            timedOut.incrementAndGet();
+                            timedOut.notifyAll();
+                        }
+                        return false;
+                    }
+                });
+        // Takes the only slot and never gives it back
+        p.start(0, collect);
+        for (int round = 1; round <= 20; round++) {
+            for (int i = 0; i < 3; i++) {
+                p.start(i, collect);
+            }
+            synchronized (timedOut) {
+                long until = System.currentTimeMillis() + 5000;
+                while (timedOut.get() < round * 3 && System.currentTimeMillis() < until) {
+                    timedOut.wait(100);
+                }
+            }
+            assertEquals(round * 3, timedOut.get());
+            assertEquals(0, bulkhead.queued());
+            assertEquals(0, bulkhead.waiting());
+        }
+        for (Throwable t : failures) {
+            assertTrue(t instanceof TimeoutException);
+        }
+        assertEquals(1, parked.size());
+    }
+
+    @Test
+    public void testCancelledWaiterIsNotStarted() throws Exception {
+        Bulkhead bulkhead = Bulkhead.queueing(1, 2, 1, TimeUnit.HOURS);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.limited(bulkhead, backend).onFailure(recorder);
+        p.start(0, collect);
+        Cancellable waiting = p.startCancellable(1, collect);
+        assertEquals(1, bulkhead.queued());
+        assertTrue(waiting.cancel());
+        assertEquals(0, bulkhead.queued());
+        assertEquals(0, bulkhead.waiting());
+        parked.get(0).trigger(0, null);
+        assertEquals(1, parked.size());
+        assertEquals(0, bulkhead.inFlight());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof CancellationException);
+    }
+
+    @Test
+    public void testAdaptiveLimit() {
+        ManualTicker ticker = new ManualTicker();
+        Bulkhead bulkhead = Bulkhead.failFast(4).adaptive(2, 6, 5, TimeUnit.MILLISECONDS).withTicker(ticker);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.limited(bulkhead, backend).onFailure(recorder);
+        // Fast completions raise the limit by one per limit's worth
+        for (int i = 0; i < 4; i++) {
+            p.start(i, collect);
+            parked.get(i).trigger(i, null);
+        }
+        assertEquals(5, bulkhead.limit());
+        // A slow one cuts it
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        p.start(4, collect);
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        parked.get(4).trigger(4, null);
+        assertEquals(4, bulkhead.limit());
+        // And a failure right after does not cut it again
+        p.start(5, collect);
+        parked.get(5).trigger(null, new Exception("slow"));
+        assertEquals(4, bulkhead.limit());
+    }
+}
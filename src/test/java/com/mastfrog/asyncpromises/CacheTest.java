@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final List<Trigger<String>> parked = Collections.synchronizedList(new ArrayList<Trigger<String>>());
+    private volatile boolean park;
+    private volatile boolean fail;
+
+    private final Logic<String, String> lookup = new Logic<String, String>() {
+        @Override
+        public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+            loads.incrementAndGet();
+            if (fail) {
+                throw new IllegalStateException("backend down");
+            }
+            if (park) {
+                parked.add(next);
+            } else {
+                next.trigger(data.toUpperCase(), null);
+            }
+        }
+    };
+
+    private final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+
+    private final Trigger<String> collect = new Trigger<String>() {
+        @Override
+        public void trigger(String obj, Throwable thrown) {
+            results.add(obj);
+        }
+    };
+
+    @Test
+    public void testHitsAreSynchronous() {
+        AsyncPromise<String, String> p = AsyncPromise.cached(10, 1, TimeUnit.HOURS, lookup);
+        for (int i = 0; i < 5; i++) {
+            p.start("a", collect);
+            // Each result is delivered before start() returns
+            assertEquals(i + 1, results.size());
+        }
+        assertEquals(1, loads.get());
+        assertEquals(Collections.nCopies(5, "A"), results);
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() {
+        park = true;
+        AsyncPromise<String, String> p = AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data.trim(), null);
+            }
+        }).thenCached(10, 1, TimeUnit.HOURS, lookup);
+        for (int i = 0; i < 10; i++) {
+            p.start(" b ", collect);
+        }
+        assertEquals(1, loads.get());
+        assertEquals(0, results.size());
+        parked.get(0).trigger("B", null);
+        assertEquals(Collections.nCopies(10, "B"), results);
+        p.start("b", collect);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testExpiryEvictionAndFailures() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        AsyncPromise<String, String> p = new PromiseImpl<>(
+                new CachingLogic<>(lookup, 2, 30, TimeUnit.MILLISECONDS, ticker));
+        p.start("a", collect);
+        ticker.advance(29, TimeUnit.MILLISECONDS);
+        p.start("a", collect);
+        assertEquals(1, loads.get());
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        p.start("a", collect);
+        assertEquals(2, loads.get());
+        // Fill past the limit - "a" is the oldest, so it goes
+        p.start("b", collect);
+        p.start("c", collect);
+        p.start("a", collect);
+        assertEquals(5, loads.get());
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncPromise<String, String> failing = AsyncPromise.cached(2, 1, TimeUnit.HOURS, lookup)
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        failure.set(thrown);
+                        return false;
+                    }
+                });
+        fail = true;
+        failing.start("d", collect);
+        assertTrue(failure.get() instanceof IllegalStateException);
+        fail = false;
+        results.clear();
+        failing.start("d", collect);
+        assertEquals(7, loads.get());
+        assertEquals(Collections.<Object>singletonList("D"), results);
+        failing.start("d", collect);
+        assertEquals(7, loads.get());
+        assertSame(results.get(0), results.get(1));
+    }
+
+    @Test
+    public void testHungLoadDoesNotPoisonKey() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        AsyncPromise<String, String> p = AsyncPromise.cached(10, 1, TimeUnit.HOURS, lookup)
+                .timeout(20, TimeUnit.MILLISECONDS)
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        if (thrown instanceof TimeoutException) {
+                            timedOut.countDown();
+                        }
+                        return false;
+                    }
+                });
+        park = true;
+        p.start("a", collect);
+        assertTrue(timedOut.await(10, TimeUnit.SECONDS));
+        // The next miss starts a load of its own rather than waiting on
+        // the one which will never finish
+        park = false;
+        p.start("a", collect);
+        assertEquals(2, loads.get());
+        assertEquals(Collections.<Object>singletonList("A"), results);
+        // And the hung one answering late changes nothing
+        parked.get(0).trigger("stale", null);
+        p.start("a", collect);
+        assertEquals(2, loads.get());
+        assertEquals(Arrays.<Object>asList("A", "A"), results);
+    }
+
+    @Test
+    public void testCancelledLoadIsHandedToNextWaiter() {
+        AsyncPromise<String, String> p = AsyncPromise.cached(10, 1, TimeUnit.HOURS, lookup);
+        park = true;
+        Cancellable first = p.startCancellable("a", collect);
+        p.start("a", collect);
+        assertEquals(1, loads.get());
+        assertTrue(first.cancel());
+        // The second run's own load
+        assertEquals(2, loads.get());
+        parked.get(0).trigger("stale", null);
+        assertTrue(results.isEmpty());
+        parked.get(1).trigger("A", null);
+        assertEquals(Collections.<Object>singletonList("A"), results);
+    }
+}
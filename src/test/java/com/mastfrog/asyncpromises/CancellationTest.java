@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CancellationTest {
+
+    private final AtomicReference<Trigger<Integer>> pending = new AtomicReference<>();
+    private final AtomicInteger laterSteps = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicReference<Object> failedInput = new AtomicReference<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final AtomicBoolean aborted = new AtomicBoolean();
+
+    private final Logic<Integer, Integer> parked = new Logic<Integer, Integer>() {
+        @Override
+        public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+            context.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    aborted.set(true);
+                }
+            });
+            assertFalse(context.isCancelled());
+            pending.set(next);
+        }
+    };
+
+    private final SimpleLogic<Integer, Integer> later = new SimpleLogic<Integer, Integer>() {
+        @Override
+        public void run(Integer data, Trigger<Integer> next) throws Exception {
+            laterSteps.incrementAndGet();
+            next.trigger(data + 1, null);
+        }
+    };
+
+    private final FailureHandler handler = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            failures.incrementAndGet();
+            failure.set(thrown);
+            failedInput.set(input);
+            return false;
+        }
+    };
+
+    private final Trigger<Integer> onDone = new Trigger<Integer>() {
+        @Override
+        public void trigger(Integer obj, Throwable thrown) {
+            done.set(true);
+        }
+    };
+
+    @Test
+    public void testCancelInFlightStep() {
+        Cancellable run = AsyncPromise.create(later).then(parked).then(later).then(later)
+                .onFailure(handler).startCancellable(1, onDone);
+        assertFalse(run.isCancelled());
+        assertEquals(1, laterSteps.get());
+        assertTrue(run.cancel());
+        assertTrue(run.isCancelled());
+        assertFalse(run.cancel());
+        assertTrue(aborted.get());
+        assertTrue(failure.get() instanceof CancellationException);
+        assertEquals(2, failedInput.get());
+        // Whatever the aborted step does next is ignored
+        pending.get().trigger(3, null);
+        assertEquals(1, laterSteps.get());
+        assertEquals(1, failures.get());
+        assertFalse(done.get());
+    }
+
+    @Test
+    public void testCancelAfterCompletion() {
+        Cancellable run = AsyncPromise.create(later).then(later)
+                .onFailure(handler).startCancellable(1, onDone);
+        assertTrue(done.get());
+        assertFalse(run.cancel());
+        assertFalse(run.isCancelled());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testCancellationReachesBranches() {
+        AsyncPromise<Integer, Integer> branch = AsyncPromise.create(parked).then(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                laterSteps.incrementAndGet();
+                next.trigger(data, null);
+            }
+        });
+        Cancellable run = AsyncPromise.create(later).then(AsyncPromise.all(branch))
+                .onFailure(handler).startCancellable(1, new Trigger<List<Integer>>() {
+                    @Override
+                    public void trigger(List<Integer> obj, Throwable thrown) {
+                        done.set(true);
+                    }
+                });
+        assertEquals(1, laterSteps.get());
+        assertTrue(run.cancel());
+        assertTrue(failure.get() instanceof CancellationException);
+        // The branch's in-flight step finishes, but the branch goes no further
+        pending.get().trigger(5, null);
+        assertEquals(1, laterSteps.get());
+        assertFalse(done.get());
+        assertEquals(1, failures.get());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DuplicateTriggerTest {
+
+    private final AtomicInteger laterSteps = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<Object> duplicates = Collections.synchronizedList(new ArrayList<>());
+
+    private final SimpleLogic<Integer, Integer> later = new SimpleLogic<Integer, Integer>() {
+        @Override
+        public void run(Integer data, Trigger<Integer> next) throws Exception {
+            laterSteps.incrementAndGet();
+            next.trigger(data + 1, null);
+        }
+    };
+
+    private final FailureHandler handler = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            failures.incrementAndGet();
+            return false;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        PromiseDiagnostics.install(null);
+    }
+
+    private void listen() {
+        PromiseDiagnostics.install(new DuplicateTriggerListener() {
+            @Override
+            public void duplicateTrigger(int step, String name, Object value, Throwable thrown) {
+                duplicates.add(thrown != null ? thrown : value);
+            }
+        });
+    }
+
+    @Test
+    public void testSynchronousDuplicatesAreDropped() {
+        listen();
+        long before = PromiseDiagnostics.duplicateTriggers();
+        final IllegalStateException oops = new IllegalStateException("oops");
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                next.trigger(data, null);
+                next.trigger(data + 100, null);
+                throw oops;
+            }
+        }).named("twice").then(later).onFailure(handler);
+        final AtomicInteger result = new AtomicInteger();
+        p.start(1, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                result.set(obj);
+            }
+        });
+        assertEquals(2, result.get());
+        assertEquals(1, laterSteps.get());
+        assertEquals(0, failures.get());
+        assertEquals(2, PromiseDiagnostics.duplicateTriggers() - before);
+        assertEquals(2, duplicates.size());
+        assertEquals(101, duplicates.get(0));
+        assertEquals(oops, duplicates.get(1));
+    }
+
+    @Test
+    public void testRacingTriggersCompleteOnce() throws Exception {
+        final int runs = 200;
+        final CountDownLatch done = new CountDownLatch(runs);
+        final CountDownLatch triggered = new CountDownLatch(runs * 2);
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+                final CyclicBarrier barrier = new CyclicBarrier(2);
+                for (int i = 0; i < 2; i++) {
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                barrier.await();
+                            } catch (Exception ex) {
+                                throw new AssertionError(ex);
+                            }
+                            try {
+                                next.trigger(data, null);
+                            } finally {
+                                triggered.countDown();
+                            }
+                        }
+                    }.start();
+                }
+            }
+        }).then(later);
+        for (int i = 0; i < runs; i++) {
+            p.start(i, new Trigger<Integer>() {
+                @Override
+                public void trigger(Integer obj, Throwable thrown) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        // The later step runs synchronously within whichever trigger call
+        // wins, so once every call has returned, no loser can still run it
+        assertTrue(triggered.await(20, TimeUnit.SECONDS));
+        assertEquals(runs, laterSteps.get());
+    }
+
+    @Test
+    public void testDuplicateWhileNextStepIsAsyncIsDropped() throws Exception {
+        listen();
+        final AtomicReference<Trigger<Integer>> first = new AtomicReference<>();
+        final AtomicReference<Trigger<Integer>> second = new AtomicReference<>();
+        final AtomicReference<Integer> secondInput = new AtomicReference<>();
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Integer> result = new AtomicReference<>();
+        AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                first.set(next);
+                next.trigger(data + 1, null);
+            }
+        }).then(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                secondInput.set(data);
+                second.set(next);
+                secondStarted.countDown();
+            }
+        }).then(later).onFailure(handler).start(1, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                result.set(obj);
+                done.countDown();
+            }
+        });
+        assertTrue(secondStarted.await(10, TimeUnit.SECONDS));
+        // The first step's trigger again, while the second is in flight
+        first.get().trigger(1000, null);
+        assertEquals(0, laterSteps.get());
+        new Thread() {
+            @Override
+            public void run() {
+                second.get().trigger(secondInput.get() * 10, null);
+            }
+        }.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(21), result.get());
+        assertEquals(1, laterSteps.get());
+        assertEquals(0, failures.get());
+        assertEquals(Collections.<Object>singletonList(1000), duplicates);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class FanOutTest {
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(8);
+
+    @AfterClass
+    public static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void testAll() throws Throwable {
+        AsyncPromise<Integer, List<Integer>> p = AsyncPromise.all(
+                AsyncPromise.create(new Delayed(30, 1)),
+                AsyncPromise.create(new Delayed(0, 2)),
+                AsyncPromise.create(new Delayed(10, 3)));
+        assertEquals(Arrays.asList(11, 12, 13), await(p, 10));
+    }
+
+    @Test
+    public void testAllFailure() throws Throwable {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Parked parked = new Parked();
+        AsyncPromise<Integer, List<Integer>> p = AsyncPromise.all(
+                AsyncPromise.create(parked),
+                AsyncPromise.create(new Failing()));
+        p.onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                failure.set(thrown);
+                return true;
+            }
+        });
+        p.start(1, new Trigger<List<Integer>>() {
+            @Override
+            public void trigger(List<Integer> obj, Throwable thrown) {
+                failure.set(new AssertionError("Should not be called"));
+            }
+        });
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof IllegalStateException);
+        // The branch still running is cancelled, and what it passes on later
+        // is ignored
+        assertEquals(1, parked.cancelled.get());
+        parked.trigger.get().trigger(2, null);
+        assertTrue(String.valueOf(failure.get()), failure.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testAllCancelsBranchesStartedAfterFailure() throws Throwable {
+        Parked parked = new Parked();
+        AsyncPromise.all(AsyncPromise.create(new Failing()), AsyncPromise.create(parked)).start(1);
+        assertEquals(1, parked.cancelled.get());
+    }
+
+    @Test
+    public void testAny() throws Throwable {
+        // The parked branch never completes, so the delayed one wins
+        AsyncPromise<Integer, Integer> p = AsyncPromise.any(
+                AsyncPromise.create(new Parked()),
+                AsyncPromise.create(new Failing()),
+                AsyncPromise.create(new Delayed(5, 2)));
+        assertEquals(Integer.valueOf(7), await(p, 5));
+    }
+
+    @Test
+    public void testAnyCancelsLosers() throws Throwable {
+        Parked before = new Parked();
+        Parked after = new Parked();
+        AsyncPromise<Integer, Integer> p = AsyncPromise.any(
+                AsyncPromise.create(before),
+                AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+                    @Override
+                    public void run(Integer data, Trigger<Integer> next) throws Exception {
+                        next.trigger(data + 1, null);
+                    }
+                }),
+                AsyncPromise.create(after));
+        final List<Integer> results = new ArrayList<>();
+        p.start(1, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                results.add(obj);
+            }
+        });
+        assertEquals(Arrays.asList(2), results);
+        // Both the branch started before the winner and the one started
+        // after it are cancelled
+        assertEquals(1, before.cancelled.get());
+        assertEquals(1, after.cancelled.get());
+        before.trigger.get().trigger(3, null);
+        assertEquals(Arrays.asList(2), results);
+    }
+
+    @Test
+    public void testAnyAllFail() throws Throwable {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncPromise.any(AsyncPromise.create(new Failing()), AsyncPromise.create(new Failing()))
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        failure.set(thrown);
+                        return true;
+                    }
+                }).start(1);
+        // Both branches fail synchronously, before start() returns
+        assertTrue(failure.get() instanceof IllegalStateException);
+        assertEquals(1, failure.get().getSuppressed().length);
+    }
+
+    @Test
+    public void testAnyAllFailWithSameException() throws Throwable {
+        final IllegalStateException shared = new IllegalStateException("down");
+        Logic<Integer, Integer> failing = new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                next.trigger(null, shared);
+            }
+        };
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncPromise.any(AsyncPromise.create(failing), AsyncPromise.create(failing))
+                .onFailure(new FailureHandler() {
+                    @Override
+                    public <T> boolean onFailure(Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                        failure.set(thrown);
+                        return true;
+                    }
+                }).start(1);
+        assertSame(shared, failure.get());
+        assertEquals(0, shared.getSuppressed().length);
+    }
+
+    @Test
+    public void testParallelMapLimitsConcurrency() throws Throwable {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        AsyncPromise<Integer, Integer> each = AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+                int now = inFlight.incrementAndGet();
+                int max;
+                while ((max = maxInFlight.get()) < now && !maxInFlight.compareAndSet(max, now)) {
+                    // retry
+                }
+                POOL.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        inFlight.decrementAndGet();
+                        next.trigger(data * 2, null);
+                    }
+                });
+            }
+        });
+        List<Integer> input = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            input.add(i);
+            expected.add(i * 2);
+        }
+        assertEquals(expected, await(AsyncPromise.parallelMap(each, 3), input));
+        assertTrue("Max in flight " + maxInFlight.get(), maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testParallelMapSynchronous() throws Throwable {
+        AsyncPromise<Integer, Integer> each = AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        });
+        List<Integer> input = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            input.add(i);
+        }
+        AsyncPromise<Collection<Integer>, List<Integer>> p = AsyncPromise.parallelMap(each, 4);
+        List<Integer> result = await(p, input);
+        assertEquals(50000, result.size());
+        assertEquals(Integer.valueOf(50000), result.get(49999));
+    }
+
+    private static <T, R> R await(AsyncPromise<T, R> p, T input) throws Throwable {
+        final AtomicReference<R> result = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        p.start(input, new Trigger<R>() {
+            @Override
+            public void trigger(R obj, Throwable thrown) {
+                result.set(obj);
+                failure.set(thrown);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        return result.get();
+    }
+
+    static final class Delayed implements Logic<Integer, Integer> {
+
+        private final long delay;
+        private final int add;
+
+        Delayed(long delay, int add) {
+            this.delay = delay;
+            this.add = add;
+        }
+
+        @Override
+        public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+            POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    next.trigger(data + add, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Holds on to its trigger, and counts cancellations of its run.
+     */
+    static final class Parked implements Logic<Integer, Integer> {
+
+        final AtomicReference<Trigger<Integer>> trigger = new AtomicReference<>();
+        final AtomicInteger cancelled = new AtomicInteger();
+
+        @Override
+        public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+            trigger.set(next);
+            context.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    cancelled.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    static final class Failing implements SimpleLogic<Integer, Integer> {
+
+        @Override
+        public void run(Integer data, Trigger<Integer> next) throws Exception {
+            throw new IllegalStateException("fail " + data);
+        }
+    }
+}
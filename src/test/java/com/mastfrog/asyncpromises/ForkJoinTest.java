@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ForkJoinTest {
+
+    private final AtomicReference<Thread> mergedOn = new AtomicReference<>();
+
+    // Splits n into chunks of up to 1000 numbers
+    private final Function<Long, List<long[]>> splitter = new Function<Long, List<long[]>>() {
+        @Override
+        public List<long[]> apply(Long n) {
+            List<long[]> result = new ArrayList<>();
+            for (long i = 0; i < n; i += 1000) {
+                result.add(new long[]{i, Math.min(n, i + 1000)});
+            }
+            return result;
+        }
+    };
+
+    private final Logic<long[], Long> sumOfSquares = new Logic<long[], Long>() {
+        @Override
+        public void run(long[] range, Trigger<Long> next, PromiseContext context) throws Exception {
+            if (range[0] == 13000) {
+                throw new IllegalStateException("unlucky");
+            }
+            long sum = 0;
+            for (long i = range[0]; i < range[1]; i++) {
+                sum += i * i;
+            }
+            next.trigger(sum, null);
+        }
+    };
+
+    private final Function<List<Long>, Long> adder = new Function<List<Long>, Long>() {
+        @Override
+        public Long apply(List<Long> sums) {
+            mergedOn.set(Thread.currentThread());
+            long result = 0;
+            for (Long l : sums) {
+                result += l;
+            }
+            return result;
+        }
+    };
+
+    @Test
+    public void testSplitAndMerge() throws Exception {
+        AsyncPromise<Long, Long> p = AsyncPromise.forkJoin(splitter, sumOfSquares, adder);
+        long expected = 0;
+        for (long i = 0; i < 12345; i++) {
+            expected += i * i;
+        }
+        assertEquals(Long.valueOf(expected), p.toCompletionStage(12345L).toCompletableFuture().get(10, TimeUnit.SECONDS));
+        assertTrue(mergedOn.get() instanceof ForkJoinWorkerThread);
+        // No chunks at all
+        assertEquals(Long.valueOf(0), p.toCompletionStage(0L).toCompletableFuture().get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testChainedAndFailing() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        AsyncPromise<Long, String> p = AsyncPromise.create(new SimpleLogic<Long, Long>() {
+            @Override
+            public void run(Long data, Trigger<Long> next) throws Exception {
+                next.trigger(data * 2, null);
+            }
+        }).thenForkJoin(splitter, sumOfSquares, adder).then(new SimpleLogic<Long, String>() {
+            @Override
+            public void run(Long data, Trigger<String> next) throws Exception {
+                next.trigger(Long.toString(data), null);
+            }
+        }).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                failure.set(thrown);
+                return false;
+            }
+        });
+        assertEquals("285", p.toCompletionStage(5L).toCompletableFuture().get(10, TimeUnit.SECONDS));
+        CompletableFuture<String> failed = p.toCompletionStage(10000L).toCompletableFuture();
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+            assertSame(ex.getCause(), failure.get());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE}) {
+            int ix = LatencyHistogram.indexOf(v);
+            assertTrue(ix >= 0 && ix < LatencyHistogram.BUCKETS);
+            long high = LatencyHistogram.highestValueAt(ix);
+            assertTrue(v + " -> " + high, high >= v);
+            assertTrue(v + " -> " + high, high - v <= v / 8);
+            if (ix > 0) {
+                assertTrue(LatencyHistogram.highestValueAt(ix - 1) < v);
+            }
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        StepStats stats = new StepStats("x", 1000, 1000, 0, 500500000L, h.snapshot());
+        assertEquals(500500, stats.meanLatencyNanos());
+        assertTrue(stats.latencyNanos(50) >= 500000 && stats.latencyNanos(50) <= 500000 * 9 / 8);
+        assertTrue(stats.latencyNanos(99) >= 990000 && stats.latencyNanos(99) <= 990000 * 9 / 8);
+    }
+
+    @Test
+    public void testNamedStepsAreMeasured() throws Exception {
+        assumeTrue(PromiseMetrics.isEnabled());
+        final AtomicReference<Trigger<Integer>> parked = new AtomicReference<>();
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                Thread.sleep(2);
+                if (data < 0) {
+                    throw new IllegalArgumentException("negative");
+                }
+                next.trigger(data, null);
+            }
+        }).named("metrics-test-sleep").then(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                if (data == 42) {
+                    parked.set(next);
+                } else {
+                    next.trigger(data, null);
+                }
+            }
+        }).named("metrics-test-park");
+        for (int i = 0; i < 5; i++) {
+            p.start(i);
+        }
+        p.start(-1);
+        p.start(42);
+        StepStats sleep = PromiseMetrics.stats("metrics-test-sleep");
+        assertNotNull(sleep);
+        assertEquals(7, sleep.started());
+        assertEquals(6, sleep.succeeded());
+        assertEquals(1, sleep.failed());
+        assertEquals(0, sleep.inFlight());
+        assertTrue(sleep.meanLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(2));
+        StepStats park = PromiseMetrics.stats("metrics-test-park");
+        assertEquals(6, park.started());
+        assertEquals(1, park.inFlight());
+        parked.get().trigger(42, null);
+        assertEquals(0, PromiseMetrics.stats("metrics-test-park").inFlight());
+
+        final List<String> names = new ArrayList<>();
+        PromiseMetrics.export(new MetricsListener() {
+            @Override
+            public void onStep(StepStats stats) {
+                names.add(stats.name());
+            }
+        });
+        assertTrue(names.contains("metrics-test-sleep"));
+        assertTrue(names.contains("metrics-test-park"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class NioTest {
+
+    private static final PromiseContext.Key<AsynchronousSocketChannel> SOCKET
+            = PromiseContext.newKey(AsynchronousSocketChannel.class);
+    private static final PromiseContext.LongKey POSITION = PromiseContext.newLongKey();
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("nio-test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Path p : Files.newDirectoryStream(dir)) {
+            Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    @Test
+    public void testFileCopy() throws Exception {
+        Path in = dir.resolve("in");
+        final Path out = dir.resolve("out");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i).append('\n');
+        }
+        Files.write(in, sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (AsynchronousFileChannel src = AsynchronousFileChannel.open(in, StandardOpenOption.READ);
+                AsynchronousFileChannel dest = AsynchronousFileChannel.open(out,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            AsyncPromise<Long, ByteBuffer> copy = AsyncPromise.create(NioLogic.readFile(src, 65536))
+                    .then(NioLogic.writeFile(dest, POSITION));
+            ByteBuffer written = copy.toCompletionStage(0L).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertTrue(written.isDirect());
+            assertEquals(0, written.remaining());
+            assertEquals(sb.length(), written.limit());
+        }
+        assertEquals(sb.toString(), new String(Files.readAllBytes(out), StandardCharsets.UTF_8));
+
+        ByteBuffer mapped = AsyncPromise.create(NioLogic.mapFile())
+                .toCompletionStage(out).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(sb.toString(), string(mapped));
+    }
+
+    @Test
+    public void testSocketEcho() throws Exception {
+        try (AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                AsynchronousSocketChannel client = AsynchronousSocketChannel.open()) {
+            client.connect(server.getLocalAddress()).get(10, TimeUnit.SECONDS);
+            try (AsynchronousSocketChannel accepted = server.accept().get(10, TimeUnit.SECONDS)) {
+                // Read what the client sends and write it back, within a deadline
+                AsyncPromise<Void, ByteBuffer> echo = AsyncPromise.create(NioLogic.<Void>readSocket(SOCKET, 1024))
+                        .then(NioLogic.writeSocket(SOCKET))
+                        .withDeadline(10, TimeUnit.SECONDS);
+                final CompletableFuture<ByteBuffer> done = new CompletableFuture<>();
+                AsyncPromise.create(new Logic<Void, Void>() {
+                    @Override
+                    public void run(Void data, Trigger<Void> next, PromiseContext context) throws Exception {
+                        context.put(SOCKET, accepted);
+                        next.trigger(null, null);
+                    }
+                }).then(echo).start(null, new Trigger<ByteBuffer>() {
+                    @Override
+                    public void trigger(ByteBuffer obj, Throwable thrown) {
+                        done.complete(obj);
+                    }
+                });
+                client.write(ByteBuffer.wrap("hello".getBytes(StandardCharsets.UTF_8))).get(10, TimeUnit.SECONDS);
+                ByteBuffer reply = ByteBuffer.allocate(5);
+                while (reply.hasRemaining()) {
+                    client.read(reply).get(10, TimeUnit.SECONDS);
+                }
+                reply.flip();
+                assertEquals("hello", string(reply));
+                ByteBuffer echoed = done.get(10, TimeUnit.SECONDS);
+                // The buffer the socket was read into is the one written
+                assertTrue(echoed.isDirect());
+                echoed.flip();
+                assertEquals("hello", string(echoed));
+            }
+        }
+    }
+
+    @Test
+    public void testBufferPoolReuse() {
+        BufferPool pool = new BufferPool(2);
+        ByteBuffer a = pool.acquire(1000);
+        assertEquals(1024, a.capacity());
+        assertEquals(1000, a.limit());
+        pool.release(a);
+        ByteBuffer b = pool.acquire(600);
+        assertSame(a, b);
+        assertEquals(600, b.limit());
+        assertEquals(0, b.position());
+        assertEquals(2 << 20, pool.acquire(2 << 20).capacity());
+    }
+}
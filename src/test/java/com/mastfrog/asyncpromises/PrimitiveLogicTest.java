@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import com.mastfrog.asyncpromises.PromiseContext.DoubleKey;
+import com.mastfrog.asyncpromises.PromiseContext.IntKey;
+import com.mastfrog.asyncpromises.PromiseContext.LongKey;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PrimitiveLogicTest {
+
+    private static final LongKey START = PromiseContext.newLongKey();
+    private static final IntKey HITS = PromiseContext.newIntKey();
+    private static final DoubleKey RATIO = PromiseContext.newDoubleKey();
+
+    @Test
+    public void testPrimitiveChain() {
+        final long[] result = new long[1];
+        AsyncPromise<Long, Long> p = AsyncPromise.createLong(new LongLogic() {
+            @Override
+            public void run(long data, LongTrigger next, PromiseContext context) throws Exception {
+                context.putLong(START, data);
+                next.trigger(data * 2, null);
+            }
+        }).thenInt(new IntLogic() {
+            @Override
+            public void run(int data, IntTrigger next, PromiseContext context) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        }).thenLong(new LongLogic() {
+            @Override
+            public void run(long data, LongTrigger next, PromiseContext context) throws Exception {
+                next.trigger(data + context.getLong(START), null);
+            }
+        });
+        p.startLong(10, new LongTrigger() {
+            @Override
+            public void trigger(long obj, Throwable thrown) {
+                result[0] = obj;
+            }
+        });
+        assertEquals(31L, result[0]);
+    }
+
+    @Test
+    public void testMixedWithBoxedSteps() {
+        final AtomicReference<Object> result = new AtomicReference<>();
+        final double[] dbl = new double[1];
+        AsyncPromise<String, Double> p = AsyncPromise.create(new SimpleLogic<String, Integer>() {
+            @Override
+            public void run(String data, Trigger<Integer> next) throws Exception {
+                next.trigger(Integer.parseInt(data), null);
+            }
+        }).thenDouble(new DoubleLogic() {
+            @Override
+            public void run(double data, DoubleTrigger next, PromiseContext context) throws Exception {
+                next.trigger(data / 4, null);
+            }
+        });
+        p.start("10", new Trigger<Double>() {
+            @Override
+            public void trigger(Double obj, Throwable thrown) {
+                result.set(obj);
+            }
+        });
+        assertEquals(Double.valueOf(2.5), result.get());
+        // And a boxed step's Number result reaches a primitive trigger
+        AsyncPromise.createDouble(new DoubleLogic() {
+            @Override
+            public void run(double data, DoubleTrigger next, PromiseContext context) throws Exception {
+                next.trigger(data / 2, null);
+            }
+        }).then(new SimpleLogic<Double, Long>() {
+            @Override
+            public void run(Double data, Trigger<Long> next) throws Exception {
+                next.trigger(data.longValue() * 3, null);
+            }
+        }).startDouble(5, new DoubleTrigger() {
+            @Override
+            public void trigger(double obj, Throwable thrown) {
+                dbl[0] = obj;
+            }
+        });
+        assertEquals(6D, dbl[0], 0);
+    }
+
+    @Test
+    public void testFailureInPrimitiveStep() {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Object> failedInput = new AtomicReference<>();
+        AsyncPromise.createInt(new IntLogic() {
+            @Override
+            public void run(int data, IntTrigger next, PromiseContext context) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        }).thenInt(new IntLogic() {
+            @Override
+            public void run(int data, IntTrigger next, PromiseContext context) throws Exception {
+                throw new IllegalArgumentException("bad " + data);
+            }
+        }).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                failure.set(thrown);
+                failedInput.set(input);
+                return false;
+            }
+        }).startInt(4, new IntTrigger() {
+            @Override
+            public void trigger(int obj, Throwable thrown) {
+                throw new AssertionError("Should not be called");
+            }
+        });
+        assertNotNull(failure.get());
+        assertEquals("bad 5", failure.get().getMessage());
+        assertEquals(Integer.valueOf(5), failedInput.get());
+    }
+
+    @Test
+    public void testPrimitiveKeys() {
+        PromiseContext ctx = new PromiseContext();
+        assertEquals(0L, ctx.getLong(START));
+        ctx.putLong(START, Long.MIN_VALUE).putInt(HITS, -3).putDouble(RATIO, 0.75);
+        assertEquals(Long.MIN_VALUE, ctx.getLong(START));
+        assertEquals(-3, ctx.getInt(HITS));
+        assertEquals(0.75, ctx.getDouble(RATIO), 0);
+        PromiseContext copy = ctx.copy();
+        copy.putInt(HITS, 7);
+        assertEquals(-3, ctx.getInt(HITS));
+        assertEquals(7, copy.getInt(HITS));
+        LongKey last = null;
+        for (int i = 0; i < 300; i++) {
+            last = PromiseContext.newLongKey();
+        }
+        ctx.putLong(last, 42);
+        assertEquals(42L, ctx.getLong(last));
+        assertTrue(copy.getLong(last) == 0);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import com.mastfrog.asyncpromises.PromiseContext.Key;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PromiseContextTest {
+
+    private static final Key<String> NAME = PromiseContext.newKey(String.class);
+    private static final Key<Integer> COUNT = PromiseContext.newKey(Integer.class);
+
+    @Test
+    public void testPutAndGet() {
+        PromiseContext ctx = new PromiseContext();
+        assertNull(ctx.get(NAME));
+        ctx.put(NAME, "hello").put(COUNT, 3);
+        assertEquals("hello", ctx.get(NAME));
+        assertEquals(Integer.valueOf(3), ctx.get(COUNT));
+        ctx.put(NAME, null);
+        assertNull(ctx.get(NAME));
+    }
+
+    @Test
+    public void testManyKeys() {
+        // Enough to push some past the dense array into the overflow map
+        List<Key<Integer>> keys = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            keys.add(PromiseContext.newKey(Integer.class));
+        }
+        PromiseContext ctx = new PromiseContext();
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            ctx.put(keys.get(i), i);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(Integer.valueOf(i), ctx.get(keys.get(i)));
+        }
+        PromiseContext copy = ctx.copy();
+        copy.put(keys.get(0), -1);
+        copy.put(keys.get(599), -1);
+        assertEquals(Integer.valueOf(0), ctx.get(keys.get(0)));
+        assertEquals(Integer.valueOf(599), ctx.get(keys.get(599)));
+        assertEquals(Integer.valueOf(598), copy.get(keys.get(598)));
+    }
+}
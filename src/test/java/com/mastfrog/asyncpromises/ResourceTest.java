@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ResourceTest {
+
+    private final AtomicInteger closed = new AtomicInteger();
+    private final List<Trigger<String>> parked = Collections.synchronizedList(new ArrayList<Trigger<String>>());
+    private final AtomicReference<ByteBuffer> lastBuffer = new AtomicReference<>();
+    private final AtomicReference<PromiseContext> lastContext = new AtomicReference<>();
+    private final BufferPool pool = new BufferPool(4);
+
+    private final CountedResource resource = new CountedResource();
+
+    private final Logic<String, String> acquire = new Logic<String, String>() {
+        @Override
+        public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+            context.useBuffers(pool);
+            context.closeWhenDone(resource);
+            lastBuffer.set(context.buffer(100));
+            if ("fail".equals(data)) {
+                throw new IllegalStateException("failing");
+            }
+            next.trigger(data, null);
+        }
+    };
+
+    private final Logic<String, String> park = new Logic<String, String>() {
+        @Override
+        public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+            parked.add(next);
+            lastContext.set(context);
+        }
+    };
+
+    private final FailureHandler quiet = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            return false;
+        }
+    };
+
+    @Test
+    public void testReleasedOnSuccessAndFailure() {
+        AsyncPromise<String, String> p = AsyncPromise.create(acquire).then(park).onFailure(quiet);
+        p.start("a");
+        assertEquals(0, closed.get());
+        ByteBuffer first = lastBuffer.get();
+        parked.get(0).trigger("done", null);
+        assertEquals(1, closed.get());
+        // The buffer went back to the pool, so the next run gets it
+        p.start("fail");
+        assertSame(first, lastBuffer.get());
+        assertEquals(2, closed.get());
+        p.start("b");
+        assertSame(first, lastBuffer.get());
+    }
+
+    @Test
+    public void testReleasedOnCancellation() {
+        AsyncPromise<String, String> p = AsyncPromise.create(acquire).then(park).onFailure(quiet);
+        Cancellable run = p.startCancellable("a", null);
+        ByteBuffer first = lastBuffer.get();
+        assertTrue(run.cancel());
+        assertEquals(1, closed.get());
+        // A step was in flight and might still use the buffer, so it is
+        // not reused
+        p.start("b");
+        assertNotSame(first, lastBuffer.get());
+    }
+
+    @Test
+    public void testBranchesHoldResourcesOpen() {
+        AsyncPromise<String, List<String>> p = AsyncPromise.create(acquire)
+                .then(AsyncPromise.all(AsyncPromise.create(park), AsyncPromise.create(acquire).then(park)));
+        final AtomicReference<List<String>> result = new AtomicReference<>();
+        p.start("a", new Trigger<List<String>>() {
+            @Override
+            public void trigger(List<String> obj, Throwable thrown) {
+                result.set(obj);
+            }
+        });
+        assertEquals(2, parked.size());
+        parked.get(0).trigger("x", null);
+        assertEquals(0, closed.get());
+        parked.get(1).trigger("y", null);
+        assertEquals(2, result.get().size());
+        // Registered twice, by the run and by a branch
+        assertEquals(2, closed.get());
+        // Registered after the run has finished, so closed at once
+        lastContext.get().closeWhenDone(resource);
+        assertEquals(3, closed.get());
+    }
+
+    private final class CountedResource implements AutoCloseable {
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+}
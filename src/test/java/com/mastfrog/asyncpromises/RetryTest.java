@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RetryTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicReference<Object> result = new AtomicReference<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private final Trigger<String> onDone = new Trigger<String>() {
+        @Override
+        public void trigger(String obj, Throwable thrown) {
+            result.set(obj);
+            latch.countDown();
+        }
+    };
+
+    private final FailureHandler handler = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            failure.set(thrown);
+            latch.countDown();
+            return false;
+        }
+    };
+
+    private Logic<String, String> failingTimes(final int times, final Exception ex) {
+        return new Logic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                if (calls.incrementAndGet() <= times) {
+                    throw ex;
+                }
+                next.trigger(data + calls.get(), null);
+            }
+        };
+    }
+
+    private static final Predicate<Throwable> IO = new Predicate<Throwable>() {
+        @Override
+        public boolean test(Throwable t) {
+            return t instanceof IOException;
+        }
+    };
+
+    @Test
+    public void testSucceedsAfterRetries() throws Exception {
+        RetryPolicy policy = RetryPolicy.maxAttempts(5).backoff(1, 5, TimeUnit.MILLISECONDS);
+        AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data + "-", null);
+            }
+        }).thenRetrying(policy, failingTimes(2, new IOException("flaky")))
+                .onFailure(handler).start("x", onDone);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals("x-3", result.get());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        RetryPolicy policy = RetryPolicy.maxAttempts(3).backoff(1, 2, TimeUnit.MILLISECONDS).retryIf(IO);
+        AsyncPromise.retrying(AsyncPromise.create(failingTimes(10, new IOException("down"))), policy)
+                .onFailure(handler).start("x", onDone);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+        // The last failure, with the earlier ones attached to a wrapper
+        // rather than to it
+        assertTrue(failure.get() instanceof ExecutionException);
+        assertTrue(failure.get().getCause() instanceof IOException);
+        assertEquals(0, failure.get().getCause().getSuppressed().length);
+        assertNull(result.get());
+    }
+
+    @Test
+    public void testEarlierFailuresAreCollected() throws Exception {
+        RetryPolicy policy = RetryPolicy.maxAttempts(3).retryIf(IO);
+        AsyncPromise.retrying(AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                throw new IOException("attempt " + calls.incrementAndGet());
+            }
+        }), policy).onFailure(handler).start("x", onDone);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Throwable thrown = failure.get();
+        assertEquals("attempt 3", thrown.getCause().getMessage());
+        assertEquals(2, thrown.getSuppressed().length);
+        assertEquals("attempt 1", thrown.getSuppressed()[0].getMessage());
+        assertEquals("attempt 2", thrown.getSuppressed()[1].getMessage());
+        assertEquals(0, thrown.getCause().getSuppressed().length);
+    }
+
+    @Test
+    public void testSuccessfulAttemptsContextIsKept() throws Exception {
+        final PromiseContext.Key<String> key = PromiseContext.newKey(String.class);
+        RetryPolicy policy = RetryPolicy.maxAttempts(3).retryIf(IO);
+        AsyncPromise<String, String> flaky = AsyncPromise.create(new Logic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                context.put(key, "attempt " + calls.incrementAndGet());
+                if (calls.get() < 2) {
+                    throw new IOException("flaky");
+                }
+                next.trigger(data, null);
+            }
+        }).then(new Logic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                next.trigger(data + context.get(key), null);
+            }
+        });
+        AsyncPromise.retrying(flaky, policy).then(new Logic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                next.trigger(data + ", " + context.get(key), null);
+            }
+        }).onFailure(handler).start("x:", onDone);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertEquals("x:attempt 2, attempt 2", result.get());
+    }
+
+    @Test
+    public void testCancellingStopsPendingRetry() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch retried = new CountDownLatch(1);
+        RetryPolicy policy = RetryPolicy.maxAttempts(3).backoff(20, 20, TimeUnit.MILLISECONDS).jitter(0);
+        Cancellable run = AsyncPromise.retrying(AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                if (calls.incrementAndGet() > 1) {
+                    retried.countDown();
+                }
+                failed.countDown();
+                throw new IOException("down");
+            }
+        }), policy).onFailure(handler).startCancellable("x", onDone);
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        // The first attempt has failed, but its failure may still be on its
+        // way to scheduling the retry - cancelling must stop it either way
+        assertTrue(run.cancel());
+        assertFalse(retried.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testUnretryableFailureIsPassedOnImmediately() throws Exception {
+        RetryPolicy policy = RetryPolicy.maxAttempts(3).retryIf(IO);
+        AsyncPromise.retrying(AsyncPromise.create(failingTimes(10, new IllegalStateException("bug"))), policy)
+                .onFailure(handler).start("x", onDone);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testDelays() {
+        RetryPolicy policy = RetryPolicy.maxAttempts(10).backoff(10, 100, TimeUnit.NANOSECONDS).jitter(0);
+        assertEquals(10, policy.delayNanos(1));
+        assertEquals(20, policy.delayNanos(2));
+        assertEquals(40, policy.delayNanos(3));
+        assertEquals(80, policy.delayNanos(4));
+        assertEquals(100, policy.delayNanos(5));
+        assertEquals(100, policy.delayNanos(9));
+        RetryPolicy jittered = policy.jitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = jittered.delayNanos(3);
+            assertTrue(delay + "", delay >= 20 && delay <= 40);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SharingTest {
+
+    private static SimpleLogic<String, String> append(final String suffix) {
+        return new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data + suffix, null);
+            }
+        };
+    }
+
+    private static String run(AsyncPromise<String, String> p, String input) {
+        final AtomicReference<String> result = new AtomicReference<>();
+        p.start(input, new Trigger<String>() {
+            @Override
+            public void trigger(String obj, Throwable thrown) {
+                result.set(obj);
+            }
+        });
+        return result.get();
+    }
+
+    @Test
+    public void testStepsCanBeReusedInManyChains() {
+        AsyncPromise<String, String> shared = AsyncPromise.create(append("!"));
+        AsyncPromise<String, String> a = AsyncPromise.create(append("a")).then(shared);
+        AsyncPromise<String, String> b = AsyncPromise.create(append("b")).then(shared).then(shared);
+        assertEquals("xa!", run(a, "x"));
+        assertEquals("xb!!", run(b, "x"));
+        assertEquals("x!", run(shared, "x"));
+    }
+
+    @Test
+    public void testSharedPrefixIsCompiledOnce() {
+        AsyncPromise<String, String> base = AsyncPromise.create(append("a")).then(append("b")).then(append("c"));
+        AsyncPromise<String, String> d = AsyncPromise.create(append("d"));
+        Chain first = null;
+        for (int i = 0; i < 5; i++) {
+            // Assembled per request
+            AsyncPromise<String, String> p = base.then(d).then(append(Integer.toString(i)));
+            assertEquals("xabcd" + i, run(p, "x"));
+            Chain chain = p.cachedChain();
+            assertEquals(5, chain.size());
+            if (i == 1) {
+                // The second chain to use it gets the prefix compiled
+                first = chain;
+            } else if (i > 1) {
+                // The prefix's steps are the same objects in every chain
+                for (int j = 0; j < 3; j++) {
+                    assertSame(first.steps[j], chain.steps[j]);
+                }
+                assertNotSame(first.steps[4], chain.steps[4]);
+            }
+        }
+        assertNotNull(base.cachedChain());
+    }
+
+    @Test
+    public void testChangesAreSeenAndSharedPartsAreFixed() {
+        final AtomicInteger handled = new AtomicInteger();
+        AsyncPromise<String, String> base = AsyncPromise.create(append("a")).then(append("b"));
+        AsyncPromise<String, String> failing = base.then(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                throw new IllegalStateException(data);
+            }
+        });
+        AsyncPromise<String, String> other = AsyncPromise.create(append("z"));
+        run(failing, "x");
+        run(other, "x");
+        Chain compiled = failing.cachedChain();
+        // A change elsewhere leaves the chain as it was
+        other.named("other");
+        run(failing, "x");
+        assertSame(compiled, failing.cachedChain());
+        // A part already in another chain cannot be changed under it
+        try {
+            base.onFailure(new Counter(handled));
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        run(failing, "x");
+        assertEquals(0, handled.get());
+        assertSame(compiled, failing.cachedChain());
+        // But the chain it was added to can still be changed, and the
+        // change is picked up
+        failing.onFailure(new Counter(handled));
+        run(failing, "x");
+        assertEquals(1, handled.get());
+        assertNotSame(compiled, failing.cachedChain());
+    }
+
+    @Test
+    public void testChangesThroughAnEnclosingChainAreSeenByItsParts() {
+        final AtomicInteger handled = new AtomicInteger();
+        AsyncPromise<String, String> inner = AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                throw new IllegalStateException(data);
+            }
+        }).then(append("b"));
+        // Compiled by itself, so the outer chain copies its steps
+        run(inner, "x");
+        Chain compiled = inner.cachedChain();
+        AsyncPromise<String, String> outer = inner.then(append("c"));
+        run(outer, "x");
+        assertSame(compiled.steps[0], outer.cachedChain().steps[0]);
+        // Adds the handler to the first step, which is inner's too
+        outer.onFailure(new Counter(handled));
+        run(outer, "x");
+        assertEquals(1, handled.get());
+        run(inner, "x");
+        assertEquals(2, handled.get());
+        assertNotSame(compiled, inner.cachedChain());
+    }
+
+    @Test
+    public void testSharedDefinitionsAreNotChanged() {
+        AsyncPromise<String, String> base = AsyncPromise.create(append("a"));
+        AsyncPromise<String, String> p = base.then(append("b"));
+        assertEquals("xab", run(p, "x"));
+        Chain compiled = p.cachedChain();
+        try {
+            base.timeout(1, TimeUnit.SECONDS);
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        try {
+            base.named("base");
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        try {
+            base.usingExecutor(VirtualThreads.executor());
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        assertEquals("xab", run(p, "x"));
+        assertSame(compiled, p.cachedChain());
+        assertEquals(0, compiled.steps[0].timeoutNanos);
+        assertNull(compiled.steps[0].name);
+        // A chain whose parts are shared only with it can be
+        p.timeout(1, TimeUnit.SECONDS);
+        assertEquals("xab", run(p, "x"));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), p.cachedChain().steps[1].timeoutNanos);
+    }
+
+    @Test
+    public void testPromiseReusedInItsOwnChain() {
+        final AtomicInteger handled = new AtomicInteger();
+        AsyncPromise<String, String> p = AsyncPromise.create(append("!"));
+        AsyncPromise<String, String> twice = p.then(p);
+        assertEquals("x!!", run(twice, "x"));
+        try {
+            p.onFailure(new Counter(handled));
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        try {
+            // The first step is also the second
+            twice.onFailure(new Counter(handled));
+            fail("Changed a shared part");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        assertEquals("x!!!", run(twice.then(p), "x"));
+    }
+
+    @Test
+    public void testAddingFailureHandlersDoesNotCompile() {
+        final AtomicInteger handled = new AtomicInteger();
+        AsyncPromise<String, String> first = AsyncPromise.create(append("a"));
+        AsyncPromise<String, String> second = AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                throw new IllegalStateException(data);
+            }
+        });
+        AsyncPromise<String, String> p = first.then(second).onFailure(new Counter(handled));
+        assertNull(first.cachedChain());
+        assertNull(second.cachedChain());
+        assertNull(p.cachedChain());
+        run(p, "x");
+        assertEquals(1, handled.get());
+        assertNotNull(p.cachedChain());
+        assertNull(first.cachedChain());
+    }
+
+    private static final class Counter implements FailureHandler {
+
+        private final AtomicInteger count;
+
+        Counter(AtomicInteger count) {
+            this.count = count;
+        }
+
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            assertTrue(thrown instanceof IllegalStateException);
+            count.incrementAndGet();
+            return true;
+        }
+    }
+}
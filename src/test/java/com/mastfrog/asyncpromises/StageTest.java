@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class StageTest {
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final FailureHandler recorder = new FailureHandler() {
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            failure.set(thrown);
+            return false;
+        }
+    };
+
+    @Test
+    public void testToCompletionStage() throws Exception {
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                if (data < 0) {
+                    throw new IllegalArgumentException("negative");
+                }
+                next.trigger(data * 2, null);
+            }
+        }).onFailure(recorder);
+        CompletionStage<Integer> stage = p.toCompletionStage(21);
+        // Completed synchronously, with no hop
+        assertTrue(stage.toCompletableFuture().isDone());
+        assertEquals(Integer.valueOf(42), stage.toCompletableFuture().get());
+
+        CompletableFuture<Integer> failed = p.toCompletionStage(-1).toCompletableFuture();
+        assertTrue(failure.get() instanceof IllegalArgumentException);
+        try {
+            failed.get();
+            fail("Should have failed");
+        } catch (ExecutionException ex) {
+            assertSame(failure.get(), ex.getCause());
+        }
+    }
+
+    @Test
+    public void testFromStageCompletesOnCompletingThread() throws Exception {
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        final AtomicReference<Thread> completedOn = new AtomicReference<>();
+        AsyncPromise<String, String> p = AsyncPromise.fromStage(new Function<String, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(String t) {
+                return pending;
+            }
+        }).then(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                completedOn.set(Thread.currentThread());
+                next.trigger(data + "!", null);
+            }
+        });
+        CompletableFuture<String> result = p.toCompletionStage("x").toCompletableFuture();
+        assertTrue(!result.isDone());
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                pending.complete("done");
+            }
+        };
+        t.start();
+        assertEquals("done!", result.get(5, TimeUnit.SECONDS));
+        assertSame(t, completedOn.get());
+    }
+
+    @Test
+    public void testFailuresAreUnwrapped() throws Exception {
+        final IllegalStateException cause = new IllegalStateException("backend");
+        AsyncPromise<String, String> p = AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data, null);
+            }
+        }).thenStage(new Function<String, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(String t) {
+                CompletableFuture<String> f = new CompletableFuture<>();
+                f.completeExceptionally(cause);
+                // A dependent stage wraps the failure in a CompletionException
+                return f.thenApply(Function.<String>identity());
+            }
+        }).onFailure(recorder);
+        p.start("a");
+        assertSame(cause, failure.get());
+    }
+
+    @Test
+    public void testCancellingStageCancelsRun() throws Exception {
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        AsyncPromise<String, String> p = AsyncPromise.fromStage(new Function<String, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(String t) {
+                return pending;
+            }
+        });
+        CompletableFuture<String> result = p.toCompletionStage("x").toCompletableFuture();
+        assertTrue(result.cancel(false));
+        // The cancellation reaches the stage the logic is waiting on
+        assertTrue(pending.isCancelled());
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class StreamTest {
+
+    private ExecutorService pool;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private volatile boolean failOn37;
+
+    @Before
+    public void setup() {
+        pool = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private AsyncPromise<Integer, Integer> chain() {
+        final Random rnd = new Random(42);
+        return AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+                if (data == 37 && failOn37) {
+                    throw new IllegalStateException("No 37s");
+                }
+                int now = running.incrementAndGet();
+                int max;
+                while ((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)) {
+                    // retry
+                }
+                final int delay;
+                synchronized (rnd) {
+                    delay = rnd.nextInt(3);
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ex) {
+                            // done
+                        }
+                        next.trigger(data * 2, null);
+                    }
+                });
+            }
+        }).then(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                running.decrementAndGet();
+                next.trigger(data + 1, null);
+            }
+        });
+    }
+
+    private static Iterator<Integer> inputs(int count) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add(i);
+        }
+        return result.iterator();
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicReference<Long> count = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        chain().startAll(inputs(200), 5, true, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                results.add(obj);
+            }
+        }, new Trigger<Long>() {
+            @Override
+            public void trigger(Long obj, Throwable thrown) {
+                count.set(obj);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(20, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(200), count.get());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(Integer.valueOf(i * 2 + 1), results.get(i));
+        }
+        assertTrue("Too many in flight: " + maxRunning.get(), maxRunning.get() <= 5);
+    }
+
+    @Test
+    public void testUnorderedAndSynchronous() throws Exception {
+        final List<Integer> results = new ArrayList<>();
+        final AtomicReference<Long> count = new AtomicReference<>();
+        // Synchronous, and long enough to overflow the stack if pulling the
+        // next input recursed
+        AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                next.trigger(data + 1, null);
+            }
+        }).startAll(inputs(100000), 3, false, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                results.add(obj);
+            }
+        }, new Trigger<Long>() {
+            @Override
+            public void trigger(Long obj, Throwable thrown) {
+                count.set(obj);
+            }
+        });
+        assertEquals(Long.valueOf(100000), count.get());
+        Collections.sort(results);
+        assertEquals(Integer.valueOf(1), results.get(0));
+        assertEquals(Integer.valueOf(100000), results.get(99999));
+    }
+
+    @Test
+    public void testFailureStopsPulling() throws Exception {
+        failOn37 = true;
+        final AtomicInteger pulled = new AtomicInteger();
+        final Iterator<Integer> src = inputs(1000);
+        Iterator<Integer> counting = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return src.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                pulled.incrementAndGet();
+                return src.next();
+            }
+        };
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicReference<Long> count = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        chain().startAll(counting, 4, false, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                // do nothing
+            }
+        }, new Trigger<Long>() {
+            @Override
+            public void trigger(Long obj, Throwable thrown) {
+                count.set(obj);
+                failure.set(thrown);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(20, TimeUnit.SECONDS));
+        assertNull(count.get());
+        assertEquals("No 37s", failure.get().getMessage());
+        assertEquals(38, pulled.get());
+    }
+
+    @Test
+    public void testBuffersOutliveHeldResults() {
+        final BufferPool buffers = new BufferPool(4);
+        final List<Trigger<Integer>> parked = new ArrayList<>();
+        AsyncPromise<Integer, ByteBuffer> p = AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                context.useBuffers(buffers);
+                parked.add(next);
+            }
+        }).then(new Logic<Integer, ByteBuffer>() {
+            @Override
+            public void run(Integer data, Trigger<ByteBuffer> next, PromiseContext context) throws Exception {
+                ByteBuffer buf = context.buffer(4);
+                buf.putInt(0, data);
+                next.trigger(buf, null);
+            }
+        });
+        final List<Integer> seen = new ArrayList<>();
+        p.startAll(inputs(3), 3, true, new Trigger<ByteBuffer>() {
+            @Override
+            public void trigger(ByteBuffer obj, Throwable thrown) {
+                seen.add(obj.getInt(0));
+            }
+        }, new Trigger<Long>() {
+            @Override
+            public void trigger(Long obj, Throwable thrown) {
+                // do nothing
+            }
+        });
+        assertEquals(3, parked.size());
+        // The second and third finish first and are held for the first;
+        // the third must not be handed the second's buffer meanwhile
+        parked.get(1).trigger(1, null);
+        parked.get(2).trigger(2, null);
+        assertTrue(seen.isEmpty());
+        parked.get(0).trigger(0, null);
+        assertEquals(Arrays.asList(0, 1, 2), seen);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TimeoutTest {
+
+    private static final class Recorder implements FailureHandler {
+
+        private final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        private final AtomicReference<Object> input = new AtomicReference<>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+            this.thrown.set(thrown);
+            this.input.set(input);
+            latch.countDown();
+            return false;
+        }
+
+        Throwable await() throws InterruptedException {
+            assertTrue("Timed out waiting for failure", latch.await(10, TimeUnit.SECONDS));
+            return thrown.get();
+        }
+    }
+
+    @Test
+    public void testStepWhichNeverTriggersTimesOut() throws Exception {
+        final AtomicReference<Trigger<String>> hung = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Recorder recorder = new Recorder();
+        AsyncPromise<String, String> p = AsyncPromise.create(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                next.trigger(data + "!", null);
+            }
+        }).then(new SimpleLogic<String, String>() {
+            @Override
+            public void run(String data, Trigger<String> next) throws Exception {
+                hung.set(next);
+            }
+        }).timeout(20, TimeUnit.MILLISECONDS).onFailure(recorder);
+        p.start("hey", new Trigger<String>() {
+            @Override
+            public void trigger(String obj, Throwable thrown) {
+                done.set(true);
+            }
+        });
+        assertTrue(recorder.await() instanceof TimeoutException);
+        assertEquals("hey!", recorder.input.get());
+        // A trigger which arrives after the timeout is ignored
+        hung.get().trigger("late", null);
+        assertFalse(done.get());
+    }
+
+    @Test
+    public void testStepWhichTriggersInTimeIsNotFailed() throws Exception {
+        Recorder recorder = new Recorder();
+        final CountDownLatch latch = new CountDownLatch(1);
+        AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        next.trigger(data + 1, null);
+                    }
+                }.start();
+            }
+        }).timeout(5, TimeUnit.SECONDS).onFailure(recorder).start(1, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, recorder.latch.getCount());
+    }
+
+    @Test
+    public void testDeadlineSpansStepsAndIsVisibleInContext() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicReference<Long> remaining = new AtomicReference<>();
+        Recorder recorder = new Recorder();
+        Logic<Integer, Integer> slow = new Logic<Integer, Integer>() {
+            @Override
+            public void run(final Integer data, final Trigger<Integer> next, PromiseContext context) throws Exception {
+                started.incrementAndGet();
+                remaining.compareAndSet(null, context.remaining(TimeUnit.MILLISECONDS));
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(30);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        next.trigger(data + 1, null);
+                    }
+                }.start();
+            }
+        };
+        AsyncPromise<Integer, Integer> p = AsyncPromise.create(slow);
+        for (int i = 0; i < 20; i++) {
+            p = p.then(slow);
+        }
+        p.withDeadline(100, TimeUnit.MILLISECONDS).onFailure(recorder).start(0);
+        assertTrue(recorder.await() instanceof TimeoutException);
+        assertTrue("Ran " + started.get() + " steps", started.get() < 20);
+        assertTrue(remaining.get() > 0 && remaining.get() <= 100);
+    }
+
+    @Test
+    public void testTightenedDeadlineFailsStepInFlight() throws Exception {
+        Recorder recorder = new Recorder();
+        final long start = System.nanoTime();
+        AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                context.deadline(30, TimeUnit.MILLISECONDS);
+                next.trigger(data + 1, null);
+            }
+        }).then(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                // never triggers
+            }
+        }).withDeadline(10, TimeUnit.SECONDS).onFailure(recorder).start(1);
+        assertTrue(recorder.await() instanceof TimeoutException);
+        assertEquals(2, recorder.input.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testManyCancelledTimeouts() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", TimeUnit.MILLISECONDS.toNanos(1), 64);
+        final CountDownLatch latch = new CountDownLatch(1);
+        for (int i = 0; i < 100000; i++) {
+            HashedWheelTimer.Timeout t = new HashedWheelTimer.Timeout() {
+                @Override
+                protected void expire() {
+                    fired.incrementAndGet();
+                }
+            };
+            // Far enough out that none can fire before it is cancelled
+            timer.schedule(t, TimeUnit.MILLISECONDS.toNanos(50 + i % 300));
+            assertTrue(t.cancel());
+            assertFalse(t.cancel());
+        }
+        HashedWheelTimer.Timeout last = new HashedWheelTimer.Timeout() {
+            @Override
+            protected void expire() {
+                latch.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        // Longer than one turn of the wheel
+        timer.schedule(last, TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(last.cancel());
+        assertEquals(0, fired.get());
+    }
+}
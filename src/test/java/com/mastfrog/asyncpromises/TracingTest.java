@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.asyncpromises;
+
+import com.mastfrog.asyncpromises.TraceEvent.Kind;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TracingTest {
+
+    private final RingBufferTracer tracer = new RingBufferTracer(256);
+
+    @After
+    public void tearDown() {
+        PromiseTracing.install(null);
+    }
+
+    private static List<Kind> kinds(List<TraceEvent> events) {
+        List<Kind> result = new ArrayList<>();
+        for (TraceEvent e : events) {
+            result.add(e.kind());
+        }
+        return result;
+    }
+
+    @Test
+    public void testTraceFollowsRunAcrossExecutorHop() throws Exception {
+        PromiseTracing.install(tracer);
+        ExecutorService exe = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "traced-hop");
+            }
+        });
+        try {
+            final AtomicLong seenId = new AtomicLong();
+            final AtomicLong hopThread = new AtomicLong();
+            final CountDownLatch latch = new CountDownLatch(1);
+            AsyncPromise.create(new SimpleLogic<String, String>() {
+                @Override
+                public void run(String data, Trigger<String> next) throws Exception {
+                    next.trigger(data + "a", null);
+                }
+            }).named("first").thenAsync(exe, new Logic<String, String>() {
+                @Override
+                public void run(String data, Trigger<String> next, PromiseContext context) throws Exception {
+                    seenId.set(context.traceId());
+                    hopThread.set(Thread.currentThread().getId());
+                    next.trigger(data + "b", null);
+                }
+            }).start("x", new Trigger<String>() {
+                @Override
+                public void trigger(String obj, Throwable thrown) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            List<TraceEvent> events = tracer.events(seenId.get());
+            assertNotEquals(0, seenId.get());
+            assertEquals(events.toString(), Arrays.asList(Kind.RUN_STARTED,
+                    Kind.STEP_ENTERED, Kind.STEP_EXITED, Kind.STEP_ENTERED, Kind.STEP_EXITED,
+                    Kind.RUN_FINISHED), kinds(events));
+            assertEquals("first", events.get(1).stepName());
+            assertEquals(0, events.get(1).step());
+            assertEquals(1, events.get(3).step());
+            assertEquals(hopThread.get(), events.get(3).threadId());
+            assertNotEquals(hopThread.get(), events.get(1).threadId());
+        } finally {
+            exe.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailureAndBranchesAreTraced() {
+        PromiseTracing.install(tracer);
+        final IllegalStateException ex = new IllegalStateException("boom");
+        AsyncPromise<Integer, Integer> failing = AsyncPromise.create(new SimpleLogic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next) throws Exception {
+                throw ex;
+            }
+        });
+        AsyncPromise.all(failing).start(1);
+        List<TraceEvent> events = tracer.events();
+        TraceEvent parentStart = events.get(0);
+        assertEquals(Kind.RUN_STARTED, parentStart.kind());
+        assertEquals(0, parentStart.parentTraceId());
+        TraceEvent branchStart = null;
+        TraceEvent branchExit = null;
+        TraceEvent branchFailure = null;
+        for (TraceEvent e : events) {
+            if (e.kind() == Kind.RUN_STARTED && e.parentTraceId() == parentStart.traceId()) {
+                branchStart = e;
+            } else if (branchStart != null && e.traceId() == branchStart.traceId()) {
+                if (e.kind() == Kind.STEP_EXITED) {
+                    branchExit = e;
+                } else if (e.kind() == Kind.RUN_FAILED) {
+                    branchFailure = e;
+                }
+            }
+        }
+        assertTrue(events.toString(), branchStart != null && branchFailure != null);
+        assertSame(ex, branchFailure.thrown());
+        assertEquals(0, branchFailure.step());
+        // The step which threw is shown as having ended
+        assertTrue(events.toString(), branchExit != null);
+        assertSame(ex, branchExit.thrown());
+    }
+
+    @Test
+    public void testTimedOutStepExits() throws Exception {
+        PromiseTracing.install(tracer);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong id = new AtomicLong();
+        AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                id.set(context.traceId());
+            }
+        }).timeout(10, TimeUnit.MILLISECONDS).onFailure(new FailureHandler() {
+            @Override
+            public <T> boolean onFailure(PromiseContext.Key<T> key, T input, Throwable thrown, PromiseContext context) {
+                latch.countDown();
+                return true;
+            }
+        }).start(1);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        List<TraceEvent> events = tracer.events(id.get());
+        assertEquals(events.toString(), Arrays.asList(Kind.RUN_STARTED,
+                Kind.STEP_ENTERED, Kind.STEP_EXITED, Kind.RUN_FAILED), kinds(events));
+        assertTrue(events.get(2).thrown() instanceof TimeoutException);
+    }
+
+    @Test
+    public void testCancelledStepExitsOnce() throws Exception {
+        PromiseTracing.install(tracer);
+        final AtomicLong id = new AtomicLong();
+        final AtomicReference<Trigger<Integer>> parked = new AtomicReference<>();
+        final AtomicInteger results = new AtomicInteger();
+        long before = PromiseDiagnostics.duplicateTriggers();
+        Cancellable run = AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                id.set(context.traceId());
+                parked.set(next);
+            }
+        }).startCancellable(1, new Trigger<Integer>() {
+            @Override
+            public void trigger(Integer obj, Throwable thrown) {
+                results.incrementAndGet();
+            }
+        });
+        assertTrue(run.cancel());
+        // The logic finishes after all
+        parked.get().trigger(2, null);
+        List<TraceEvent> events = tracer.events(id.get());
+        assertEquals(events.toString(), Arrays.asList(Kind.RUN_STARTED,
+                Kind.STEP_ENTERED, Kind.STEP_EXITED, Kind.RUN_FAILED), kinds(events));
+        assertTrue(events.get(2).thrown() instanceof CancellationException);
+        assertEquals(0, results.get());
+        assertEquals(before, PromiseDiagnostics.duplicateTriggers());
+    }
+
+    @Test
+    public void testRingBufferKeepsMostRecent() {
+        RingBufferTracer small = new RingBufferTracer(6);
+        for (int i = 1; i <= 100; i++) {
+            small.runFinished(i);
+        }
+        List<TraceEvent> events = small.events();
+        assertEquals(8, events.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(93 + i, events.get(i).traceId());
+        }
+        PromiseTracing.install(null);
+        final AtomicLong id = new AtomicLong(-1);
+        AsyncPromise.create(new Logic<Integer, Integer>() {
+            @Override
+            public void run(Integer data, Trigger<Integer> next, PromiseContext context) throws Exception {
+                id.set(context.traceId());
+                next.trigger(data, null);
+            }
+        }).start(1);
+        assertEquals(0, id.get());
+    }
+}